@@ -0,0 +1,287 @@
+package craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Base class of the optimization passes. By default every node is
+//rewritten to itself, and a node is only rebuilt when one of its
+//children was replaced, so untouched parts of the tree keep their
+//identity and whatever the Resolver stored on them. A statement may be
+//rewritten to null to remove it.
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    //Number of rewrites the pass has made, for the report
+    int changes = 0;
+
+    abstract String name();
+
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = rewrite(statement);
+            if (result != null) rewritten.add(result);
+            changed |= result != statement;
+        }
+        return changed ? rewritten : statements;
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        Stmt result = stmt.accept(this);
+        //A rebuilt statement starts where the one it replaces did
+        if (result != null && result.line == 0) result.line = stmt.line;
+        return result;
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    //For places that need a statement even if the rewrite removed it
+    private Stmt rewriteBody(Stmt stmt) {
+        Stmt result = rewrite(stmt);
+        return result != null ? result : new Stmt.Block(new ArrayList<>());
+    }
+
+    private List<Expr> rewriteAll(List<Expr> exprs) {
+        List<Expr> rewritten = new ArrayList<>(exprs.size());
+        boolean changed = false;
+        for (Expr expr : exprs) {
+            Expr result = rewrite(expr);
+            rewritten.add(result);
+            changed |= result != expr;
+        }
+        return changed ? rewritten : exprs;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.hasEnvironment = stmt.hasEnvironment;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function result = (Stmt.Function) rewrite(method);
+            methods.add(result);
+            changed |= result != method;
+        }
+        if (!changed) return stmt;
+
+        Stmt.Class klass = new Stmt.Class(stmt.name, methods);
+        klass.isCaptured = stmt.isCaptured;
+        klass.slot = stmt.slot;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitCountedStmt(Stmt.Counted stmt) {
+        Stmt statement = rewriteBody(stmt.statement);
+        if (statement == stmt.statement) return stmt;
+        Stmt.Counted counted = new Stmt.Counted(statement);
+        counted.count = stmt.count;
+        counted.timer = stmt.timer;
+        return counted;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = rewrite(stmt.body);
+        if (body == stmt.body) return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.isCaptured = stmt.isCaptured;
+        function.slot = stmt.slot;
+        function.capturedSlots = stmt.capturedSlots;
+        function.upvalueDepths = stmt.upvalueDepths;
+        function.upvalueSlots = stmt.upvalueSlots;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewriteBody(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : rewriteBody(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        Stmt.Return rewritten = new Stmt.Return(stmt.keyword, value);
+        rewritten.isTailCall = stmt.isTailCall && value instanceof Expr.Call;
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.isCaptured = stmt.isCaptured;
+        var.slot = stmt.slot;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewriteBody(stmt.body);
+        Expr increment = rewrite(stmt.increment);
+        if (condition == stmt.condition && body == stmt.body && increment == stmt.increment) {
+            return stmt;
+        }
+        return new Stmt.While(condition, body, increment);
+    }
+
+    @Override
+    public Expr visitArrayExpr(Expr.Array expr) {
+        List<Expr> elements = rewriteAll(expr.elements);
+        if (elements == expr.elements) return expr;
+        return new Expr.Array(expr.bracket, elements);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.inCell = expr.inCell;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = rewriteAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        Expr object = rewrite(expr.object);
+        Expr index = rewrite(expr.index);
+        if (object == expr.object && index == expr.index) return expr;
+        return new Expr.Index(object, expr.bracket, index);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.object);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSetIndexExpr(Expr.SetIndex expr) {
+        Expr object = rewrite(expr.object);
+        Expr index = rewrite(expr.index);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && index == expr.index && value == expr.value) return expr;
+        return new Expr.SetIndex(object, expr.bracket, index, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = rewrite(expr.condition);
+        Expr trueExpr = rewrite(expr.trueExpr);
+        Expr falseExpr = rewrite(expr.falseExpr);
+        if (condition == expr.condition && trueExpr == expr.trueExpr && falseExpr == expr.falseExpr) {
+            return expr;
+        }
+        return new Expr.Ternary(condition, trueExpr, falseExpr);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
@@ -0,0 +1,39 @@
+package craftinginterpreters.lox;
+
+//Replaces if statements and ternaries whose condition is a literal with
+//the branch that would be taken. An if statement with nothing to take
+//is removed.
+class BranchEliminator extends AstRewriter {
+    private final Interpreter interpreter;
+
+    BranchEliminator(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    @Override
+    String name() {
+        return "branches";
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        if (!(stmt.condition instanceof Expr.Literal)) return super.visitIfStmt(stmt);
+
+        changes++;
+        if (interpreter.isTruthy(((Expr.Literal) stmt.condition).value)) {
+            return rewrite(stmt.thenBranch);
+        }
+        return stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        if (!(expr.condition instanceof Expr.Literal)) return super.visitTernaryExpr(expr);
+
+        changes++;
+        if (interpreter.isTruthy(((Expr.Literal) expr.condition).value)) {
+            return rewrite(expr.trueExpr);
+        }
+        return rewrite(expr.falseExpr);
+    }
+}
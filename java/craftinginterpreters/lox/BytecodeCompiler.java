@@ -0,0 +1,686 @@
+package craftinginterpreters.lox;
+
+import craftinginterpreters.lox.vm.Chunk;
+import craftinginterpreters.lox.vm.FunctionProto;
+import craftinginterpreters.lox.vm.VM;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static craftinginterpreters.lox.vm.OpCode.*;
+
+//Compiles resolved statements into bytecode for the VM. Variables are
+//resolved again here into stack slots and upvalues, since the VM lays
+//out its frames differently from the Interpreter's environments.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_OPERAND = 0xffff;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+        final List<Integer> continueJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final FunctionProto function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+        //Tracks how many values are on the stack so the VM knows how much
+        //room a frame needs up front
+        int stackDepth = 0;
+        int maxStack = 0;
+
+        FunctionState(FunctionState enclosing, FunctionProto function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current = null;
+    private int line = 1;
+
+    BytecodeCompiler(VM vm) {
+        this.vm = vm;
+    }
+
+    FunctionProto compile(List<Stmt> statements) {
+        beginFunction(new FunctionProto(null, 0, 0), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginFunction(FunctionProto function, FunctionType type) {
+        current = new FunctionState(current, function, type);
+
+        //Slot zero holds the callee, or the receiver for methods
+        current.locals.add(new Local(type == FunctionType.METHOD ? "this" : "", 0));
+        adjustStack(1);
+    }
+
+    private FunctionProto endFunction() {
+        emit(NIL);
+        emit(RETURN);
+
+        FunctionProto function = current.function;
+        function.finish(current.upvalues.size(), current.maxStack);
+        current = current.enclosing;
+        return function;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        beginFunction(new FunctionProto(stmt.name.lexeme, stmt.params.size(), stmt.name.line), type);
+        beginScope();
+
+        for (Token param : stmt.params) {
+            addLocal(param);
+            adjustStack(1);
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        List<Upvalue> upvalues = current.upvalues;
+        FunctionProto function = endFunction();
+
+        line = stmt.name.line;
+        emitWithShort(CLOSURE, makeConstant(function));
+        for (Upvalue upvalue : upvalues) {
+            chunk().write(upvalue.isLocal ? 1 : 0, line);
+            chunk().writeShort(upvalue.index, line);
+        }
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emit(locals.get(locals.size() - 1).isCaptured ? CLOSE_UPVALUE : POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    //The value for a new local is already on top of the stack, so the
+    //local just takes over that slot
+    private void addLocal(Token name) {
+        if (current.locals.size() > MAX_OPERAND) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, current.scopeDepth));
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            addLocal(name);
+            return;
+        }
+
+        emitWithShort(DEFINE_GLOBAL, vm.globalSlot(name.lexeme));
+    }
+
+    private void namedVariable(Token name, Expr value) {
+        line = name.line;
+        byte getOp;
+        byte setOp;
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) {
+            getOp = GET_LOCAL;
+            setOp = SET_LOCAL;
+        }
+        else if ((arg = resolveUpvalue(current, name.lexeme)) != -1) {
+            getOp = GET_UPVALUE;
+            setOp = SET_UPVALUE;
+        }
+        else {
+            arg = vm.globalSlot(name.lexeme);
+            getOp = GET_GLOBAL;
+            setOp = SET_GLOBAL;
+        }
+
+        if (value != null) {
+            compile(value);
+            line = name.line;
+            emitWithShort(setOp, arg);
+        }
+        else {
+            emitWithShort(getOp, arg);
+        }
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        if (state.upvalues.size() > MAX_OPERAND) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    //Pops locals down to the loop's scope without forgetting them, since
+    //code after a break or continue still sees them
+    private void exitLoopScopes(Loop loop) {
+        for (int i = current.locals.size() - 1; i >= 0; i--) {
+            Local local = current.locals.get(i);
+            if (local.depth <= loop.scopeDepth) break;
+            emit(local.isCaptured ? CLOSE_UPVALUE : POP);
+        }
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void adjustStack(int delta) {
+        current.stackDepth += delta;
+        if (current.stackDepth > current.maxStack) {
+            current.maxStack = current.stackDepth;
+        }
+    }
+
+    private void emit(byte op) {
+        chunk().write(op, line);
+        adjustStack(stackEffect(op));
+    }
+
+    private void emitWithShort(byte op, int operand) {
+        emit(op);
+        chunk().writeShort(operand, line);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        chunk().writeShort(MAX_OPERAND, line);
+        return chunk().size() - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk().size() - offset - 2;
+        if (jump > MAX_OPERAND) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+
+        chunk().patchShort(offset, jump);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(LOOP);
+
+        int offset = chunk().size() - loopStart + 2;
+        if (offset > MAX_OPERAND) {
+            Lox.error(line, "Loop body too large.");
+        }
+        chunk().writeShort(offset, line);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = chunk().addConstant(value);
+        if (constant > MAX_OPERAND) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private static int stackEffect(byte op) {
+        switch (op) {
+            case CONSTANT:
+            case NIL:
+            case TRUE:
+            case FALSE:
+            case GET_LOCAL:
+            case GET_GLOBAL:
+            case GET_UPVALUE:
+            case CLOSURE:
+            case CLASS:
+                return 1;
+            case POP:
+            case DEFINE_GLOBAL:
+            case SET_PROPERTY:
+            case EQUAL:
+            case NOT_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case PRINT:
+            case CLOSE_UPVALUE:
+            case RETURN:
+            case METHOD:
+            case GET_INDEX:
+                return -1;
+            case SET_INDEX:
+                return -2;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        int stackDepth = current.stackDepth;
+        exitLoopScopes(current.loop);
+        current.loop.breakJumps.add(emitJump(JUMP));
+        current.stackDepth = stackDepth;
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        int stackDepth = current.stackDepth;
+        exitLoopScopes(current.loop);
+        current.loop.continueJumps.add(emitJump(JUMP));
+        current.stackDepth = stackDepth;
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        emitWithShort(CLASS, makeConstant(stmt.name.lexeme));
+        defineVariable(stmt.name);
+
+        namedVariable(stmt.name, null);
+        for (Stmt.Function method : stmt.methods) {
+            function(method, FunctionType.METHOD);
+            emitWithShort(METHOD, makeConstant(method.name.lexeme));
+        }
+        emit(POP);
+        return null;
+    }
+
+    //Lines are only counted by the other engines
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        compile(stmt.statement);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        //Locals are declared before the body so the function can recurse
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name);
+            function(stmt, FunctionType.FUNCTION);
+        }
+        else {
+            function(stmt, FunctionType.FUNCTION);
+            defineVariable(stmt.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(JUMP_IF_FALSE);
+        emit(POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        //The else path starts with the condition still on the stack
+        adjustStack(1);
+        emit(POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.isTailCall) {
+            call((Expr.Call) stmt.value, TAIL_CALL);
+        }
+        else if (stmt.value != null) {
+            compile(stmt.value);
+        }
+        else {
+            emit(NIL);
+        }
+
+        line = stmt.keyword.line;
+        emit(RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        }
+        else {
+            emit(NIL);
+        }
+
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().size();
+        compile(stmt.condition);
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        emit(POP);
+
+        Loop loop = new Loop(current.loop, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing;
+
+        //Continue still carries out the increment expression of a for loop
+        for (int jump : loop.continueJumps) {
+            patchJump(jump);
+        }
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(POP);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        adjustStack(1);
+        emit(POP);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        namedVariable(expr.name, expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case PLUS: emit(ADD); break;
+            case MINUS: emit(SUBTRACT); break;
+            case STAR: emit(MULTIPLY); break;
+            case SLASH: emit(DIVIDE); break;
+            case GREATER: emit(GREATER); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL); break;
+            case LESS: emit(LESS); break;
+            case LESS_EQUAL: emit(LESS_EQUAL); break;
+            case BANG_EQUAL: emit(NOT_EQUAL); break;
+            case EQUAL_EQUAL: emit(EQUAL); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, CALL);
+        return null;
+    }
+
+    //A TAIL_CALL is always followed by the RETURN of its result
+    private void call(Expr.Call expr, byte op) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emit(op);
+        chunk().write(expr.arguments.size(), line);
+        adjustStack(-expr.arguments.size());
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for (Expr element : expr.elements) {
+            compile(element);
+        }
+
+        line = expr.bracket.line;
+        if (expr.elements.size() > MAX_OPERAND) {
+            Lox.error(expr.bracket, "Too many elements in array literal.");
+        }
+        emitWithShort(ARRAY, expr.elements.size());
+        adjustStack(1 - expr.elements.size());
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        compile(expr.object);
+        compile(expr.index);
+        line = expr.bracket.line;
+        emit(GET_INDEX);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitWithShort(GET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL);
+        }
+        else if (expr.value.equals(true)) {
+            emit(TRUE);
+        }
+        else if (expr.value.equals(false)) {
+            emit(FALSE);
+        }
+        else {
+            emitWithShort(CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    //Logical operators leave whichever operand decided the result
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(JUMP_IF_FALSE);
+            int endJump = emitJump(JUMP);
+            patchJump(elseJump);
+            emit(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        else {
+            int endJump = emitJump(JUMP_IF_FALSE);
+            emit(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        //The object is checked before the value is evaluated, as in the Interpreter
+        line = expr.name.line;
+        emit(CHECK_INSTANCE);
+        compile(expr.value);
+        line = expr.name.line;
+        emitWithShort(SET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+        compile(expr.object);
+        compile(expr.index);
+        compile(expr.value);
+        line = expr.bracket.line;
+        emit(SET_INDEX);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, null);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS: emit(NEGATE); break;
+            case BANG: emit(NOT); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+        int falseJump = emitJump(JUMP_IF_FALSE);
+        emit(POP);
+        compile(expr.trueExpr);
+
+        int endJump = emitJump(JUMP);
+        patchJump(falseJump);
+        emit(POP);
+        compile(expr.falseExpr);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name, null);
+        return null;
+    }
+}
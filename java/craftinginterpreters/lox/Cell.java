@@ -0,0 +1,13 @@
+package craftinginterpreters.lox;
+
+//Holds a local variable that an inner function uses. The variable's
+//slot holds the cell instead of the value, and every function using
+//it closes over the same cell, so closures only keep the variables
+//they use alive rather than the whole environment they were made in.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
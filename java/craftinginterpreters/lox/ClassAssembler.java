@@ -0,0 +1,399 @@
+package craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//Writes the class files the JvmCompiler loads. It only knows the few
+//instructions the compiler emits. Classes are written as version 49 so
+//the JVM infers the stack map frames itself instead of needing them in
+//the class file.
+final class ClassAssembler {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int AASTORE = 0x53;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP_X2 = 0x5b;
+    static final int SWAP = 0x5f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int IFNONNULL = 0xc7;
+    private static final int WIDE = 0xc4;
+
+    //Thrown when a method outgrows what the class file format allows
+    static class TooLarge extends RuntimeException {
+        TooLarge(String message) {
+            super(message);
+        }
+    }
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassAssembler(String name, String superName) {
+        thisClass = classConstant(name);
+        superClass = classConstant(superName);
+    }
+
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code(access, utf8(name), utf8(descriptor), parameterSlots(descriptor, true));
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toBytes() {
+        int codeName = utf8("Code");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(methods.size());
+            for (Code method : methods) {
+                method.writeTo(out, codeName);
+            }
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Constant pool
+
+    private int constant(String key, int size, PoolWriter writer) {
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+
+        try {
+            writer.write(pool);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xffff) throw new TooLarge("Too many constants.");
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    private interface PoolWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int utf8(String value) {
+        return constant("U" + value, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    private int classConstant(String name) {
+        int utf8 = utf8(name);
+        return constant("C" + name, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(utf8);
+        });
+    }
+
+    private int stringConstant(String value) {
+        int utf8 = utf8(value);
+        return constant("S" + value, 1, out -> {
+            out.writeByte(8);
+            out.writeShort(utf8);
+        });
+    }
+
+    private int intConstant(int value) {
+        return constant("I" + value, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    private int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        return constant("D" + bits, 2, out -> {
+            out.writeByte(6);
+            out.writeLong(bits);
+        });
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classConstant(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + " " + descriptor, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant(tag + owner + "." + name + " " + descriptor, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    //Counts the local slots, or operand stack slots, a descriptor's
+    //parameters take up
+    private static int parameterSlots(String descriptor, boolean withReceiver) {
+        int slots = withReceiver ? 1 : 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                slots += 2;
+                i++;
+                continue;
+            }
+
+            slots++;
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            i++;
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (c == 'V') return 0;
+        if (c == 'J' || c == 'D') return 2;
+        return 1;
+    }
+
+    static final class Label {
+        private int position = -1;
+        private final List<int[]> uses = new ArrayList<>();
+    }
+
+    //The body of a single method. The operand stack depth is tracked as
+    //instructions are added so max_stack can be filled in at the end.
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int maxLocals;
+        private int stack = 0;
+        private int maxStack = 0;
+        private final List<Label> labels = new ArrayList<>();
+
+        private Code(int access, int name, int descriptor, int parameterSlots) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = parameterSlots;
+        }
+
+        int newLocal(int size) {
+            int local = maxLocals;
+            maxLocals += size;
+            if (maxLocals > 0xffff) throw new TooLarge("Too many locals.");
+            return local;
+        }
+
+        //Used after an unconditional jump, where the depth at the next
+        //label comes from the branches into it, not the code before it
+        void setStack(int depth) {
+            stack = depth;
+        }
+
+        int stack() {
+            return stack;
+        }
+
+        void op(int opcode, int stackEffect) {
+            writeByte(opcode);
+            adjust(stackEffect);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            }
+            else {
+                op(LDC_W, 1);
+                writeShort(intConstant(value));
+            }
+        }
+
+        void ldc(String value) {
+            op(LDC_W, 1);
+            writeShort(stringConstant(value));
+        }
+
+        void ldc(double value) {
+            op(LDC2_W, 2);
+            writeShort(doubleConstant(value));
+        }
+
+        void load(int opcode, int local) {
+            local(opcode, local, opcode == DLOAD ? 2 : 1);
+        }
+
+        void store(int opcode, int local) {
+            local(opcode, local, opcode == DSTORE ? -2 : -1);
+        }
+
+        private void local(int opcode, int local, int stackEffect) {
+            if (local > 0xff) {
+                writeByte(WIDE);
+                op(opcode, stackEffect);
+                writeShort(local);
+            }
+            else {
+                op(opcode, stackEffect);
+                writeByte(local);
+            }
+        }
+
+        void type(int opcode, String className) {
+            op(opcode, opcode == NEW ? 1 : 0);
+            writeShort(classConstant(className));
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            int size = descriptor.equals("D") || descriptor.equals("J") ? 2 : 1;
+            op(opcode, opcode == GETSTATIC ? size : size - 1);
+            writeShort(memberConstant(9, owner, name, descriptor));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int arguments = parameterSlots(descriptor, opcode != INVOKESTATIC);
+            op(opcode, returnSlots(descriptor) - arguments);
+            writeShort(memberConstant(opcode == INVOKEINTERFACE ? 11 : 10, owner, name, descriptor));
+            if (opcode == INVOKEINTERFACE) {
+                writeByte(arguments);
+                writeByte(0);
+            }
+        }
+
+        Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void jump(int opcode, Label target) {
+            int position = length;
+            op(opcode, opcode == GOTO ? 0 : -1);
+            target.uses.add(new int[] {position, length});
+            writeShort(0);
+        }
+
+        void place(Label label) {
+            label.position = length;
+        }
+
+        private void writeTo(DataOutputStream out, int codeName) throws IOException {
+            for (Label label : labels) {
+                for (int[] use : label.uses) {
+                    int offset = label.position - use[0];
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new TooLarge("Jump too large.");
+                    }
+                    code[use[1]] = (byte) (offset >> 8);
+                    code[use[1] + 1] = (byte) offset;
+                }
+            }
+            if (length >= 0xffff) throw new TooLarge("Method too large.");
+
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void writeByte(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) value;
+        }
+
+        private void writeShort(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//Compiles resolved statements into a tree of pre-bound lambdas. Every
+//decision the Interpreter makes while visiting a node, like which operator
+//to apply, which slot a variable lives in or what a literal's value is,
+//is made once here, so running the result never dispatches on node types
+//or operator tokens. Values, environments, functions and instances are
+//the same ones the Interpreter uses, as are its slow paths and errors.
+//
+//Statements report how they completed instead of throwing, since an
+//exception thrown through a chain of lambdas is expensive to unwind.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Evaluator>, Stmt.Visitor<ClosureCompiler.Executor> {
+    interface Evaluator {
+        Object evaluate(Environment environment);
+    }
+
+    //Returns null when the statement completes normally, otherwise
+    //BREAK, CONTINUE or RETURN
+    interface Executor {
+        Object execute(Environment environment);
+    }
+
+    //Produces a number without boxing it, like Interpreter.evaluateNumber.
+    //When the value turns out not to be a number, it is left in nonNumber.
+    interface NumberEvaluator {
+        double evaluate(Environment environment);
+    }
+
+    private static final Object BREAK = new Object();
+    private static final Object CONTINUE = new Object();
+    private static final Object RETURN = new Object();
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+    //Set by a return statement, read back by the function it returns from
+    private Object returnValue = null;
+    //Set by every NumberEvaluator
+    private boolean producedNumber = false;
+    private Object nonNumber = null;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    Executor compile(List<Stmt> statements) {
+        return sequence(compileAll(statements));
+    }
+
+    private static Executor sequence(Executor[] statements) {
+        return environment -> {
+            for (Executor statement : statements) {
+                Object completion = statement.execute(environment);
+                if (completion != null) return completion;
+            }
+            return null;
+        };
+    }
+
+    private Executor[] compileAll(List<Stmt> statements) {
+        Executor[] executors = new Executor[statements.size()];
+        for (int i = 0; i < executors.length; i++) {
+            executors[i] = statements.get(i).accept(this);
+        }
+        return executors;
+    }
+
+    private Evaluator compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    //A compiled body evaluates to the function's return value
+    private Evaluator compileFunction(Stmt.Function stmt) {
+        Executor body = sequence(compileAll(stmt.body));
+
+        return environment -> {
+            if (body.execute(environment) != RETURN) return null;
+
+            Object value = returnValue;
+            returnValue = null;
+            return value;
+        };
+    }
+
+    //A captured variable's cell is defined before its value is evaluated,
+    //so a function or class using itself can capture it
+    private Executor define(int slot, Evaluator value, boolean isCaptured) {
+        if (isCaptured) {
+            return environment -> {
+                Cell cell = new Cell(null);
+                environment.define(slot, cell);
+                cell.value = value.evaluate(environment);
+                return null;
+            };
+        }
+        return environment -> {
+            environment.define(slot, value.evaluate(environment));
+            return null;
+        };
+    }
+
+    private Evaluator variable(Token name, int depth, int slot, boolean inCell) {
+        if (inCell) return environment -> environment.getCellAt(depth, slot);
+        switch (depth) {
+            case -1: return environment -> globals.getGlobal(name, slot);
+            case 0: return environment -> environment.getAt(0, slot);
+            case 1: return environment -> environment.enclosing.getAt(0, slot);
+            default: return environment -> environment.getAt(depth, slot);
+        }
+    }
+
+    @Override
+    public Executor visitBreakStmt(Stmt.Break stmt) {
+        return environment -> BREAK;
+    }
+
+    @Override
+    public Executor visitContinueStmt(Stmt.Continue stmt) {
+        return environment -> CONTINUE;
+    }
+
+    @Override
+    public Executor visitBlockStmt(Stmt.Block stmt) {
+        Executor[] statements = compileAll(stmt.statements);
+        //Blocks in functions keep their locals in the function's frame
+        if (!stmt.hasEnvironment) return sequence(statements);
+
+        return environment -> {
+            Environment inner = interpreter.newEnvironment(environment);
+            Object completion = null;
+            for (Executor statement : statements) {
+                completion = statement.execute(inner);
+                if (completion != null) break;
+            }
+            interpreter.recycle(inner);
+            return completion;
+        };
+    }
+
+    @Override
+    public Executor visitClassStmt(Stmt.Class stmt) {
+        Map<Stmt.Function, Evaluator> bodies = new HashMap<>();
+        for (Stmt.Function method : stmt.methods) {
+            bodies.put(method, compileFunction(method));
+        }
+
+        String name = stmt.name.lexeme;
+        return define(stmt.slot, environment -> {
+            Map<String, LoxFunction> methods = new HashMap<>();
+            for (Stmt.Function method : stmt.methods) {
+                Environment closure = environment.capture(method);
+                methods.put(method.name.lexeme, new LoxFunction(method, closure, bodies.get(method), true));
+            }
+            return new LoxClass(name, methods);
+        }, stmt.isCaptured);
+    }
+
+    @Override
+    public Executor visitCountedStmt(Stmt.Counted stmt) {
+        Executor statement = stmt.statement.accept(this);
+        return environment -> {
+            stmt.count++;
+            stmt.timer.start();
+            try {
+                return statement.execute(environment);
+            }
+            finally {
+                stmt.timer.stop();
+            }
+        };
+    }
+
+    @Override
+    public Executor visitExpressionStmt(Stmt.Expression stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return environment -> {
+            expression.evaluate(environment);
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitFunctionStmt(Stmt.Function stmt) {
+        Evaluator body = compileFunction(stmt);
+        return define(stmt.slot, environment -> new LoxFunction(stmt, environment.capture(stmt), body, false),
+                stmt.isCaptured);
+    }
+
+    @Override
+    public Executor visitIfStmt(Stmt.If stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor thenBranch = stmt.thenBranch.accept(this);
+
+        if (stmt.elseBranch == null) {
+            return environment -> {
+                if (interpreter.isTruthy(condition.evaluate(environment))) {
+                    return thenBranch.execute(environment);
+                }
+                return null;
+            };
+        }
+
+        Executor elseBranch = stmt.elseBranch.accept(this);
+        return environment -> {
+            if (interpreter.isTruthy(condition.evaluate(environment))) {
+                return thenBranch.execute(environment);
+            }
+            return elseBranch.execute(environment);
+        };
+    }
+
+    @Override
+    public Executor visitPrintStmt(Stmt.Print stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return environment -> {
+            interpreter.print(expression.evaluate(environment));
+            return null;
+        };
+    }
+
+    @Override
+    public Executor visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> RETURN;
+        }
+
+        Evaluator value = stmt.isTailCall ? compileCall((Expr.Call) stmt.value, true) : compile(stmt.value);
+        return environment -> {
+            returnValue = value.evaluate(environment);
+            return RETURN;
+        };
+    }
+
+    @Override
+    public Executor visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return define(stmt.slot, environment -> null, stmt.isCaptured);
+        }
+        return define(stmt.slot, compile(stmt.initializer), stmt.isCaptured);
+    }
+
+    @Override
+    public Executor visitWhileStmt(Stmt.While stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor body = stmt.body.accept(this);
+        Evaluator increment = stmt.increment != null ? compile(stmt.increment) : environment -> null;
+
+        return environment -> {
+            while (interpreter.isTruthy(condition.evaluate(environment))) {
+                Object completion = body.execute(environment);
+                if (completion == BREAK) break;
+                if (completion == RETURN) return completion;
+                //Continue still carries out the increment
+                increment.evaluate(environment);
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Evaluator visitAssignExpr(Expr.Assign expr) {
+        Evaluator value = compile(expr.value);
+        Token name = expr.name;
+        int depth = expr.depth;
+        int slot = expr.slot;
+
+        if (depth < 0) {
+            return environment -> {
+                Object result = value.evaluate(environment);
+                globals.assignGlobal(name, slot, result);
+                return result;
+            };
+        }
+        if (expr.inCell) {
+            return environment -> {
+                Object result = value.evaluate(environment);
+                environment.assignCellAt(depth, slot, result);
+                return result;
+            };
+        }
+        return environment -> {
+            Object result = value.evaluate(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    //Each operator gets its own closure with numbers handled inline and
+    //without boxing the operands. Anything else goes to the Interpreter's
+    //generic implementation, which also reports type errors.
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return box(compileNumber(expr));
+            case EQUAL_EQUAL: {
+                Evaluator left = compile(expr.left);
+                Evaluator right = compile(expr.right);
+                return environment -> interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+            }
+            case BANG_EQUAL: {
+                Evaluator left = compile(expr.left);
+                Evaluator right = compile(expr.right);
+                return environment -> !interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+            }
+        }
+
+        NumberEvaluator left = compileNumber(expr.left);
+        NumberEvaluator right = compileNumber(expr.right);
+        //The left operand's value is taken before the right one is evaluated
+        switch (expr.operator.type) {
+            case GREATER:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, nonNumber, boxed(right, environment));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, a, nonNumber);
+                    return a > b;
+                };
+            case GREATER_EQUAL:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, nonNumber, boxed(right, environment));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, a, nonNumber);
+                    return a >= b;
+                };
+            case LESS:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, nonNumber, boxed(right, environment));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, a, nonNumber);
+                    return a < b;
+                };
+            case LESS_EQUAL:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, nonNumber, boxed(right, environment));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return interpreter.executeBinary(expr, a, nonNumber);
+                    return a <= b;
+                };
+        }
+
+        return environment -> interpreter.executeBinary(expr, boxed(left, environment), boxed(right, environment));
+    }
+
+    //Arithmetic, negation, number literals and locals are evaluated
+    //without boxing, as are the operands of arithmetic. Anything else is
+    //evaluated as usual and unboxed if it's a number.
+    private NumberEvaluator compileNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            NumberEvaluator arithmetic = compileArithmetic(binary);
+            if (arithmetic != null) return arithmetic;
+        }
+        else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            NumberEvaluator right = compileNumber(unary.right);
+            return environment -> {
+                double value = right.evaluate(environment);
+                if (!producedNumber) return asNumber(interpreter.executeUnary(unary, nonNumber));
+                return -value;
+            };
+        }
+        else if (expr instanceof Expr.Grouping) {
+            return compileNumber(((Expr.Grouping) expr).expression);
+        }
+        else if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+            double value = (double) ((Expr.Literal) expr).value;
+            return environment -> {
+                producedNumber = true;
+                return value;
+            };
+        }
+        else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.depth >= 0 && !variable.inCell) return local(variable.depth, variable.slot);
+        }
+
+        Evaluator value = compile(expr);
+        return environment -> asNumber(value.evaluate(environment));
+    }
+
+    private NumberEvaluator compileArithmetic(Expr.Binary expr) {
+        NumberEvaluator left;
+        NumberEvaluator right;
+        switch (expr.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                left = compileNumber(expr.left);
+                right = compileNumber(expr.right);
+                break;
+            default:
+                return null;
+        }
+
+        switch (expr.operator.type) {
+            case PLUS:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, nonNumber, boxed(right, environment)));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, a, nonNumber));
+                    return a + b;
+                };
+            case MINUS:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, nonNumber, boxed(right, environment)));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, a, nonNumber));
+                    return a - b;
+                };
+            case STAR:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, nonNumber, boxed(right, environment)));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, a, nonNumber));
+                    return a * b;
+                };
+            default:
+                return environment -> {
+                    double a = left.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, nonNumber, boxed(right, environment)));
+                    double b = right.evaluate(environment);
+                    if (!producedNumber) return asNumber(interpreter.executeBinary(expr, a, nonNumber));
+                    return a / b;
+                };
+        }
+    }
+
+    private NumberEvaluator local(int depth, int slot) {
+        switch (depth) {
+            case 0:
+                return environment -> {
+                    if (!environment.isNumber(slot)) return asNumber(environment.get(slot));
+                    producedNumber = true;
+                    return environment.getNumber(slot);
+                };
+            default:
+                return environment -> {
+                    Environment scope = environment.ancestor(depth);
+                    if (!scope.isNumber(slot)) return asNumber(scope.get(slot));
+                    producedNumber = true;
+                    return scope.getNumber(slot);
+                };
+        }
+    }
+
+    private double asNumber(Object value) {
+        if (value instanceof Double) {
+            producedNumber = true;
+            return (double) value;
+        }
+
+        producedNumber = false;
+        nonNumber = value;
+        return 0;
+    }
+
+    private Object boxed(NumberEvaluator number, Environment environment) {
+        double value = number.evaluate(environment);
+        return producedNumber ? (Object) value : nonNumber;
+    }
+
+    private Evaluator box(NumberEvaluator number) {
+        return environment -> boxed(number, environment);
+    }
+
+    @Override
+    public Evaluator visitCallExpr(Expr.Call expr) {
+        return compileCall(expr, false);
+    }
+
+    //Methods found on an instance are called without binding them, like
+    //in the Interpreter, and a tail call to a Lox function is only checked
+    //and recorded for LoxFunction.call to make
+    private Evaluator compileCall(Expr.Call expr, boolean isTailCall) {
+        Evaluator[] arguments = new Evaluator[expr.arguments.size()];
+        //Set for the arguments that compute a number, which Lox functions
+        //get unboxed
+        NumberEvaluator[] numbers = new NumberEvaluator[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            Expr argument = expr.arguments.get(i);
+            if (producesNumbers(argument)) {
+                numbers[i] = compileNumber(argument);
+                arguments[i] = box(numbers[i]);
+            }
+            else {
+                arguments[i] = compile(argument);
+            }
+        }
+
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Evaluator object = compile(get.object);
+            return environment -> {
+                Object receiver = object.evaluate(environment);
+                LoxFunction method = interpreter.findMethod(get, receiver);
+                if (method != null) {
+                    return finishCall(expr, arguments, numbers, environment, method, (LoxInstance) receiver, isTailCall);
+                }
+                Object function = interpreter.getProperty(get, receiver);
+                return finishCall(expr, arguments, numbers, environment, function, null, isTailCall);
+            };
+        }
+
+        Evaluator callee = compile(expr.callee);
+        return environment -> finishCall(expr, arguments, numbers, environment, callee.evaluate(environment), null,
+                isTailCall);
+    }
+
+    private static boolean producesNumbers(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            switch (((Expr.Binary) expr).operator.type) {
+                case PLUS:
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+    }
+
+    //Arguments to Lox functions are evaluated straight into the frame
+    private Object finishCall(Expr.Call expr, Evaluator[] arguments, NumberEvaluator[] numbers,
+                              Environment environment, Object callee, LoxInstance receiver, boolean isTailCall) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            Environment frame = function.frame(interpreter, receiver);
+            for (int i = 0; i < arguments.length; i++) {
+                if (numbers[i] == null) {
+                    frame.define(arguments[i].evaluate(environment));
+                    continue;
+                }
+
+                double value = numbers[i].evaluate(environment);
+                if (producedNumber) {
+                    frame.defineNumber(value);
+                }
+                else {
+                    frame.define(nonNumber);
+                }
+            }
+            interpreter.checkFunction(expr, function);
+            if (isTailCall) return interpreter.tailCall(function, frame);
+            try {
+                return function.call(interpreter, frame);
+            }
+            catch (StackOverflowError e) {
+                throw Interpreter.stackOverflow(expr);
+            }
+        }
+
+        Object[] values = arguments.length == 0 ? LoxCallable.NO_ARGUMENTS : new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments[i].evaluate(environment);
+        }
+        return interpreter.call(expr, null, callee, values, false);
+    }
+
+    @Override
+    public Evaluator visitArrayExpr(Expr.Array expr) {
+        Evaluator[] elements = new Evaluator[expr.elements.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = compile(expr.elements.get(i));
+        }
+
+        return environment -> {
+            LoxArray array = new LoxArray(elements.length);
+            for (Evaluator element : elements) {
+                array.add(element.evaluate(environment));
+            }
+            return array;
+        };
+    }
+
+    @Override
+    public Evaluator visitIndexExpr(Expr.Index expr) {
+        Evaluator object = compile(expr.object);
+        Evaluator index = compile(expr.index);
+        return environment -> {
+            Object array = object.evaluate(environment);
+            return interpreter.getIndex(expr, array, index.evaluate(environment));
+        };
+    }
+
+    @Override
+    public Evaluator visitGetExpr(Expr.Get expr) {
+        Evaluator object = compile(expr.object);
+        return environment -> interpreter.getProperty(expr, object.evaluate(environment));
+    }
+
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Evaluator visitLogicalExpr(Expr.Logical expr) {
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                Object value = left.evaluate(environment);
+                if (interpreter.isTruthy(value)) return value;
+                return right.evaluate(environment);
+            };
+        }
+        return environment -> {
+            Object value = left.evaluate(environment);
+            if (!interpreter.isTruthy(value)) return value;
+            return right.evaluate(environment);
+        };
+    }
+
+    @Override
+    public Evaluator visitSetExpr(Expr.Set expr) {
+        Evaluator object = compile(expr.object);
+        Evaluator value = compile(expr.value);
+        Token name = expr.name;
+
+        return environment -> {
+            LoxInstance instance = interpreter.fieldTarget(object.evaluate(environment), name);
+            Object result = value.evaluate(environment);
+            instance.set(expr, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitSetIndexExpr(Expr.SetIndex expr) {
+        Evaluator object = compile(expr.object);
+        Evaluator index = compile(expr.index);
+        Evaluator value = compile(expr.value);
+
+        return environment -> {
+            Object array = object.evaluate(environment);
+            Object position = index.evaluate(environment);
+            return interpreter.setIndex(expr, array, position, value.evaluate(environment));
+        };
+    }
+
+    @Override
+    public Evaluator visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot, expr.inCell);
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) return box(compileNumber(expr));
+
+        Evaluator right = compile(expr.right);
+        return environment -> !interpreter.isTruthy(right.evaluate(environment));
+    }
+
+    @Override
+    public Evaluator visitTernaryExpr(Expr.Ternary expr) {
+        Evaluator condition = compile(expr.condition);
+        Evaluator trueExpr = compile(expr.trueExpr);
+        Evaluator falseExpr = compile(expr.falseExpr);
+
+        return environment -> interpreter.isTruthy(condition.evaluate(environment))
+                ? trueExpr.evaluate(environment)
+                : falseExpr.evaluate(environment);
+    }
+
+    @Override
+    public Evaluator visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot, expr.inCell);
+    }
+}
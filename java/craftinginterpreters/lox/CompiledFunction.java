@@ -0,0 +1,52 @@
+package craftinginterpreters.lox;
+
+//Base class of the function bodies the JvmCompiler turns into JVM
+//classes. A subclass is generated per function and gets its parameters
+//and locals as JVM locals. Constants it can't put in the class file,
+//like tokens and AST nodes, come from the constants array.
+abstract class CompiledFunction {
+    final Stmt.Function declaration;
+    final Object[] constants;
+
+    CompiledFunction(Stmt.Function declaration, Object[] constants) {
+        this.declaration = declaration;
+        this.constants = constants;
+    }
+
+    //Gets the environment LoxFunction made for the call, holding the
+    //receiver of methods and the arguments. Its enclosing environment is
+    //the function's closure.
+    abstract Object call(Interpreter interpreter, Environment frame);
+
+    //Operators with no type assumptions compiled in go through the same
+    //self-specializing operations as the Interpreter
+    static Object binary(Interpreter interpreter, Expr.Binary node, Object left, Object right) {
+        return node.operation.execute(interpreter, node, left, right);
+    }
+
+    static Object unary(Interpreter interpreter, Expr.Unary node, Object operand) {
+        return node.operation.execute(interpreter, node, operand);
+    }
+
+    //Called when an operand the code was specialized for turns out to
+    //have another type. The current call finishes on the generic path,
+    //and later calls go back to the Interpreter until the function is
+    //hot enough to be compiled again with what was learned.
+    Object deoptimize(Interpreter interpreter, Expr.Binary node, Object left, Object right) {
+        invalidate();
+        return node.operation.execute(interpreter, node, left, right);
+    }
+
+    Object deoptimize(Interpreter interpreter, Expr.Unary node, Object operand) {
+        invalidate();
+        return node.operation.execute(interpreter, node, operand);
+    }
+
+    private void invalidate() {
+        if (declaration.compiled != this) return;
+
+        declaration.compiled = null;
+        declaration.calls = 0;
+        declaration.deoptimizations++;
+    }
+}
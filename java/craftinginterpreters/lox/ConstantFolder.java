@@ -0,0 +1,79 @@
+package craftinginterpreters.lox;
+
+//Replaces operators whose operands are all literals with the literal
+//they evaluate to. The Interpreter's own operator code does the
+//evaluation, so folded results are exactly what running them would
+//give. Operations that would fail are left for the runtime error.
+class ConstantFolder extends AstRewriter {
+    private final Interpreter interpreter;
+
+    ConstantFolder(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    @Override
+    String name() {
+        return "fold";
+    }
+
+    private Expr fold(Object value) {
+        changes++;
+        //Literals are always plain Strings
+        if (value instanceof LoxString) value = value.toString();
+        return new Expr.Literal(value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr rewritten = super.visitBinaryExpr(expr);
+        Expr.Binary binary = (Expr.Binary) rewritten;
+        if (!(binary.left instanceof Expr.Literal) || !(binary.right instanceof Expr.Literal)) {
+            return rewritten;
+        }
+
+        try {
+            return fold(interpreter.executeBinary(binary,
+                    ((Expr.Literal) binary.left).value, ((Expr.Literal) binary.right).value));
+        }
+        catch (RuntimeError e) {
+            return rewritten;
+        }
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr rewritten = super.visitUnaryExpr(expr);
+        Expr.Unary unary = (Expr.Unary) rewritten;
+        if (!(unary.right instanceof Expr.Literal)) return rewritten;
+
+        try {
+            return fold(interpreter.executeUnary(unary, ((Expr.Literal) unary.right).value));
+        }
+        catch (RuntimeError e) {
+            return rewritten;
+        }
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr rewritten = super.visitGroupingExpr(expr);
+        Expr inner = ((Expr.Grouping) rewritten).expression;
+        if (!(inner instanceof Expr.Literal)) return rewritten;
+
+        changes++;
+        return inner;
+    }
+
+    //A literal left operand decides whether the right one is needed
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr rewritten = super.visitLogicalExpr(expr);
+        Expr.Logical logical = (Expr.Logical) rewritten;
+        if (!(logical.left instanceof Expr.Literal)) return rewritten;
+
+        boolean leftTruthy = interpreter.isTruthy(((Expr.Literal) logical.left).value);
+        boolean leftDecides = logical.operator.type == TokenType.OR ? leftTruthy : !leftTruthy;
+        changes++;
+        return leftDecides ? logical.left : logical.right;
+    }
+}
@@ -1,51 +1,174 @@
 package craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 
+//Globals and locals both live in the slot the Resolver assigned them.
+//Globals are still late bound: the Resolver interns their names into
+//slots of the global environment, which are filled in once defined. Numbers
+//the Interpreter computed unboxed are stored unboxed in a parallel
+//array, and only boxed if someone reads them as an Object.
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    //Marks a slot whose value is in numbers instead
+    private static final Object UNBOXED = new Object();
+    //Marks the slot of a global that hasn't been defined yet
+    private static final Object UNDEFINED = new Object();
+
+    Environment enclosing;
+    private final Map<String, Integer> globals;
+    private Object[] slots;
+    private double[] numbers = null;
+    private int count = 0;
 
     Environment() {
         enclosing = null;
+        globals = new HashMap<>();
+        slots = new Object[8];
     }
 
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        globals = null;
+        slots = new Object[8];
+    }
+
+    //For the Interpreter to reuse the environment of a block or call
+    //that has finished
+    void reuse(Environment enclosing) {
+        this.enclosing = enclosing;
+    }
+
+    void clear() {
+        Arrays.fill(slots, 0, count, null);
+        count = 0;
+        enclosing = null;
+    }
+
+    //Returns the slot of a global, giving it a new one the first time
+    //the name is seen
+    int intern(String name) {
+        Integer slot = globals.get(name);
+        if (slot != null) return slot;
+
+        if (count == slots.length) grow(count + 1);
+        slots[count] = UNDEFINED;
+        globals.put(name, count);
+        return count++;
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        slots[intern(name)] = value;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    //Parameters, and the cells of a closure, are defined in order
+    void define(Object value) {
+        if (count == slots.length) grow(count + 1);
+        slots[count++] = value;
+    }
+
+    void defineNumber(double value) {
+        if (count == slots.length) grow(count + 1);
+        setNumber(count++, value);
+    }
+
+    //Declarations are defined in the slot the Resolver gave them, since
+    //blocks share the environment of the function they are in
+    void define(int slot, Object value) {
+        if (slot >= slots.length) grow(slot + 1);
+        slots[slot] = value;
+        if (slot >= count) count = slot + 1;
+    }
+
+    void defineNumber(int slot, double value) {
+        if (slot >= slots.length) grow(slot + 1);
+        setNumber(slot, value);
+        if (slot >= count) count = slot + 1;
+    }
+
+    private void grow(int size) {
+        int length = Math.max(size, slots.length * 2);
+        slots = Arrays.copyOf(slots, length);
+        if (numbers != null) numbers = Arrays.copyOf(numbers, length);
+    }
+
+    private void setNumber(int slot, double value) {
+        if (numbers == null) numbers = new double[slots.length];
+        slots[slot] = UNBOXED;
+        numbers[slot] = value;
+    }
+
+    void assignGlobal(Token name, int slot, Object value) {
+        if (slots[slot] == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
         }
+        slots[slot] = value;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    void assignNumberAt(int distance, int slot, double value) {
+        ancestor(distance).setNumber(slot, value);
+    }
+
+    Object getGlobal(Token name, int slot) {
+        Object value = slots[slot];
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
         }
+        return value;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).get(slot);
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    Object get(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) return numbers[slot];
+        return value;
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) return values.get(name.lexeme);
-        if (enclosing != null) return enclosing.get(name);
+    boolean isNumber(int slot) {
+        Object value = slots[slot];
+        return value == UNBOXED || value instanceof Double;
+    }
+
+    //Only valid for slots isNumber accepts
+    double getNumber(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) return numbers[slot];
+        return (double) value;
+    }
+
+    //Captured variables hold a Cell shared with the closures using them
+    Object getCellAt(int distance, int slot) {
+        return ((Cell) ancestor(distance).slots[slot]).value;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    void assignCellAt(int distance, int slot, Object value) {
+        ((Cell) ancestor(distance).slots[slot]).value = value;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    //For parameters the function's inner functions capture
+    void moveToCell(int slot) {
+        slots[slot] = new Cell(get(slot));
+    }
+
+    //Makes the closure of a function declared in this environment out of
+    //the cells the Resolver found it uses. Functions using no locals of
+    //enclosing functions have none.
+    Environment capture(Stmt.Function function) {
+        int[] depths = function.upvalueDepths;
+        if (depths.length == 0) return null;
+
+        Environment closure = new Environment(null);
+        for (int i = 0; i < depths.length; i++) {
+            closure.define(ancestor(depths[i]).slots[function.upvalueSlots[i]]);
+        }
+        return closure;
     }
 
     Environment ancestor(int distance) {
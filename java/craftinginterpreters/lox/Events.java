@@ -0,0 +1,106 @@
+package craftinginterpreters.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+//Flight Recorder events for what the Lox program does, so a recording
+//shows Lox calls, objects and errors next to GC and JIT activity.
+//
+//Loading the first event class starts up much of Flight Recorder, which
+//takes longer than many scripts run. So no event is made, and none of
+//their classes loaded, until Flight Recorder has been started, whether
+//on the command line or later through jcmd. From then on JFR decides
+//which events are enabled and recorded.
+//
+//The Java stack of an event would only show the interpreter, so none
+//records one.
+final class Events {
+    private Events() {}
+
+    //Returns null if there's nothing to record the call
+    static Call startCall() {
+        if (!FlightRecorder.isInitialized()) return null;
+
+        Call event = new Call();
+        event.begin();
+        return event;
+    }
+
+    static void endCall(Call event, Stmt.Function function) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.function = function.name.lexeme;
+            event.line = function.name.line;
+            event.commit();
+        }
+    }
+
+    static void instanceCreated(LoxClass klass) {
+        if (!FlightRecorder.isInitialized()) return;
+
+        Instance event = new Instance();
+        if (event.isEnabled()) {
+            event.className = klass.name;
+            event.commit();
+        }
+    }
+
+    static void runtimeError(String message, int line) {
+        if (!FlightRecorder.isInitialized()) return;
+
+        Failure event = new Failure();
+        if (event.isEnabled()) {
+            event.message = message;
+            event.line = line;
+            event.commit();
+        }
+    }
+
+    //One event per call that takes longer than the threshold, covering
+    //any tail calls it hands its result to
+    @Name("lox.FunctionCall")
+    @Label("Lox Function Call")
+    @Category("Lox")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("Line the function is declared on")
+        int line;
+    }
+
+    //Off by default, since allocation-heavy programs would make one for
+    //every object. Enable it in the recording settings to see which
+    //classes are instantiated.
+    @Name("lox.InstanceCreation")
+    @Label("Lox Instance Creation")
+    @Category("Lox")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Instance extends Event {
+        @Label("Class")
+        String className;
+    }
+
+    @Name("lox.RuntimeError")
+    @Label("Lox Runtime Error")
+    @Category("Lox")
+    @StackTrace(false)
+    static final class Failure extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+}
@@ -4,14 +4,17 @@ import java.util.List;
 
 abstract class Expr {
 	interface Visitor<R> {
+		R visitArrayExpr(Array expr);
 		R visitAssignExpr(Assign expr);
 		R visitBinaryExpr(Binary expr);
 		R visitCallExpr(Call expr);
 		R visitGetExpr(Get expr);
 		R visitGroupingExpr(Grouping expr);
+		R visitIndexExpr(Index expr);
 		R visitLiteralExpr(Literal expr);
 		R visitLogicalExpr(Logical expr);
 		R visitSetExpr(Set expr);
+		R visitSetIndexExpr(SetIndex expr);
 		R visitThisExpr(This expr);
 		R visitUnaryExpr(Unary expr);
 		R visitTernaryExpr(Ternary expr);
@@ -20,9 +23,26 @@ abstract class Expr {
 
 	abstract <R> R accept(Visitor<R> visitor);
 
+	static class Array extends Expr {
+		final Token bracket;
+		final List<Expr> elements;
+
+		public Array(Token bracket, List<Expr> elements) {
+			this.bracket = bracket;
+			this.elements = elements;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitArrayExpr(this);
+		}
+	}
 	static class Assign extends Expr {
 		final Token name;
 		final Expr value;
+		int depth = -1;
+		int slot;
+		boolean inCell;
 
 		public Assign(Token name, Expr value) {
 			this.name = name;
@@ -38,6 +58,7 @@ abstract class Expr {
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		Operators.BinaryOperation operation = Operators.UNINITIALIZED_BINARY;
 
 		public Binary(Expr left, Token operator, Expr right) {
 			this.left = left;
@@ -54,6 +75,7 @@ abstract class Expr {
 		final Expr callee;
 		final Token paren;
 		final List<Expr> arguments;
+		InlineCache.Call cache = new InlineCache.Call();
 
 		public Call(Expr callee, Token paren, List<Expr> arguments) {
 			this.callee = callee;
@@ -69,6 +91,7 @@ abstract class Expr {
 	static class Get extends Expr {
 		final Expr object;
 		final Token name;
+		InlineCache.Property cache = new InlineCache.Property();
 
 		public Get(Expr object, Token name) {
 			this.object = object;
@@ -92,6 +115,22 @@ abstract class Expr {
 			return visitor.visitGroupingExpr(this);
 		}
 	}
+	static class Index extends Expr {
+		final Expr object;
+		final Token bracket;
+		final Expr index;
+
+		public Index(Expr object, Token bracket, Expr index) {
+			this.object = object;
+			this.bracket = bracket;
+			this.index = index;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitIndexExpr(this);
+		}
+	}
 	static class Literal extends Expr {
 		final Object value;
 
@@ -108,6 +147,7 @@ abstract class Expr {
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		Operators.LogicalOperation operation = Operators.UNINITIALIZED_LOGICAL;
 
 		public Logical(Expr left, Token operator, Expr right) {
 			this.left = left;
@@ -124,6 +164,7 @@ abstract class Expr {
 		final Expr object;
 		final Token name;
 		final Expr value;
+		InlineCache.Store cache = new InlineCache.Store();
 
 		public Set(Expr object, Token name, Expr value) {
 			this.object = object;
@@ -136,8 +177,29 @@ abstract class Expr {
 			return visitor.visitSetExpr(this);
 		}
 	}
+	static class SetIndex extends Expr {
+		final Expr object;
+		final Token bracket;
+		final Expr index;
+		final Expr value;
+
+		public SetIndex(Expr object, Token bracket, Expr index, Expr value) {
+			this.object = object;
+			this.bracket = bracket;
+			this.index = index;
+			this.value = value;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitSetIndexExpr(this);
+		}
+	}
 	static class This extends Expr {
 		final Token keyword;
+		int depth = -1;
+		int slot;
+		boolean inCell;
 
 		public This(Token keyword) {
 			this.keyword = keyword;
@@ -151,6 +213,7 @@ abstract class Expr {
 	static class Unary extends Expr {
 		final Token operator;
 		final Expr right;
+		Operators.UnaryOperation operation = Operators.UNINITIALIZED_UNARY;
 
 		public Unary(Token operator, Expr right) {
 			this.operator = operator;
@@ -180,6 +243,9 @@ abstract class Expr {
 	}
 	static class Variable extends Expr {
 		final Token name;
+		int depth = -1;
+		int slot;
+		boolean inCell;
 
 		public Variable(Token name) {
 			this.name = name;
@@ -0,0 +1,99 @@
+package craftinginterpreters.lox;
+
+//Per-site caches for Call, Get and Set nodes. A call site remembers the
+//last callee that passed the callable and arity checks, so calling it
+//again skips them. Property sites remember what they found for the
+//last few instance shapes, so an access on a shape seen before is a
+//shape check and an array access.
+final class InlineCache {
+    //Sites that see more shapes than this look the rest up every time
+    private static final int MAX_SHAPES = 4;
+
+    private InlineCache() {}
+
+    static final class Call {
+        private Object callee = null;
+        //Bound methods are new objects every time, but all share one declaration
+        private Stmt.Function declaration = null;
+
+        //An empty cache holds null, which mustn't let a nil callee through
+        boolean matches(Object callee) {
+            if (callee == this.callee) return callee != null;
+            return callee instanceof LoxFunction && ((LoxFunction) callee).declaration == declaration;
+        }
+
+        void update(LoxCallable callee) {
+            this.callee = callee;
+            declaration = callee instanceof LoxFunction ? ((LoxFunction) callee).declaration : null;
+        }
+    }
+
+    //Remembers, for each shape seen at a get site, which slot the name
+    //is stored in, or which method it resolves to if it isn't a field.
+    //Shapes never change, so entries never go stale.
+    static final class Property {
+        private final Shape[] shapes = new Shape[MAX_SHAPES];
+        private final int[] slots = new int[MAX_SHAPES];
+        private final LoxFunction[] methods = new LoxFunction[MAX_SHAPES];
+        private int size = 0;
+
+        //Returns the entry for the shape, or -1
+        int find(Shape shape) {
+            for (int i = 0; i < size; i++) {
+                if (shapes[i] == shape) return i;
+            }
+            return -1;
+        }
+
+        int slot(int entry) {
+            return slots[entry];
+        }
+
+        LoxFunction method(int entry) {
+            return methods[entry];
+        }
+
+        void add(Shape shape, int slot, LoxFunction method) {
+            if (size == MAX_SHAPES) return;
+
+            shapes[size] = shape;
+            slots[size] = slot;
+            methods[size] = method;
+            size++;
+        }
+    }
+
+    //Remembers, for each shape seen at a set site, the slot the field is
+    //stored in and the shape the instance has afterwards, which is a
+    //new one when the field is being added
+    static final class Store {
+        private final Shape[] shapes = new Shape[MAX_SHAPES];
+        private final int[] slots = new int[MAX_SHAPES];
+        private final Shape[] nextShapes = new Shape[MAX_SHAPES];
+        private int size = 0;
+
+        int find(Shape shape) {
+            for (int i = 0; i < size; i++) {
+                if (shapes[i] == shape) return i;
+            }
+            return -1;
+        }
+
+        int slot(int entry) {
+            return slots[entry];
+        }
+
+        Shape nextShape(int entry) {
+            return nextShapes[entry];
+        }
+
+        void add(Shape shape, int slot, Shape nextShape) {
+            if (size == MAX_SHAPES) return;
+
+            shapes[size] = shape;
+            slots[size] = slot;
+            nextShapes[size] = nextShape;
+            size++;
+        }
+    }
+}
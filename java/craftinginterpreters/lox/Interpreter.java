@@ -1,32 +1,79 @@
 package craftinginterpreters.lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    //Where print statements write
+    final OutputSink output;
+    //Hot functions get compiled to JVM classes by the JvmCompiler
+    boolean tieredCompilation = false;
+    //Set by evaluateNumber. When an expression that so far produced
+    //numbers produces something else, the value is left in nonNumber.
+    private boolean producedNumber = false;
+    private Object nonNumber = null;
+    //Statements return null when they complete normally, otherwise one
+    //of these. Loops and calls check for them directly, so leaving a
+    //loop or function never throws.
+    static final Object BREAK = new Object();
+    static final Object CONTINUE = new Object();
+    static final Object RETURN = new Object();
+    //Set by a return statement, taken by the function it returns from
+    private Object returnValue = null;
+    //Returned by functions ending in a tail call, which is left here for
+    //LoxFunction.call to make
+    static final Object TAIL_CALL = new Object();
+    LoxFunction tailFunction = null;
+    Environment tailFrame = null;
+    //Told about every call to a Lox function when --profile is on
+    Profiler profiler = null;
+    //Environments of blocks and calls that have finished, for the next
+    //ones to reuse. Closures are made of cells rather than the
+    //environment they were declared in, so once left nothing sees one.
+    private final Environment[] freeEnvironments = new Environment[256];
+    private int freeCount = 0;
+
+    Interpreter(OutputSink output) {
+        this.output = output;
+        for (Native function : Native.ALL) {
+            globals.define(function.name, callable(function));
+        }
+    }
 
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
+    //The fixed-arity entry points pack their arguments for the native
+    private static LoxCallable callable(Native function) {
+        return new LoxCallable() {
             @Override
             public int arity() {
-                return 0;
+                return function.arity;
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                return function.call(arguments);
             }
 
             @Override
-            public String toString() {return "<native fn>";}
-        });
+            public String toString() {
+                return function.toString();
+            }
+        };
     }
 
+    void interpret(ClosureCompiler.Executor program) {
+        try {
+            program.execute(globals);
+        }
+        catch (RuntimeError e) {
+            Lox.runtimeError(e);
+        }
+    }
+
+    //Return statements are only allowed in functions, so the top level
+    //always completes normally
     void interpret(List<Stmt> statements) {
         try {
             for (Stmt statement : statements) {
@@ -39,97 +86,157 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new ControlException.Break();
+    public Object visitBreakStmt(Stmt.Break stmt) {
+        return BREAK;
     }
 
     @Override
-    public Void visitContinueStmt(Stmt.Continue stmt) {
-        throw new ControlException.Continue();
+    public Object visitContinueStmt(Stmt.Continue stmt) {
+        return CONTINUE;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        //Blocks in functions keep their locals in the function's frame
+        if (!stmt.hasEnvironment) return executeBlock(stmt.statements, environment);
+
+        Environment inner = newEnvironment(environment);
+        Object completion = executeBlock(stmt.statements, inner);
+        recycle(inner);
+        return completion;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, null);
+    public Object visitClassStmt(Stmt.Class stmt) {
+        //Defined first so methods using the class can capture it
+        Cell cell = stmt.isCaptured ? defineCell(stmt.slot) : null;
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment);
+            LoxFunction function = new LoxFunction(method, environment.capture(method), true);
             methods.put(method.name.lexeme, function);
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme, methods);
-        environment.assign(stmt.name, klass);
+        if (cell != null) {
+            cell.value = klass;
+        }
+        else {
+            environment.define(stmt.slot, klass);
+        }
         return null;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+    public Object visitCountedStmt(Stmt.Counted stmt) {
+        stmt.count++;
+        stmt.timer.start();
+        try {
+            return execute(stmt.statement);
+        }
+        finally {
+            stmt.timer.stop();
+        }
+    }
+
+    @Override
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
+        evaluateForEffect(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        //Defined first so a recursive function can capture itself
+        Cell cell = stmt.isCaptured ? defineCell(stmt.slot) : null;
+
+        LoxFunction function = new LoxFunction(stmt, environment.capture(stmt), false);
+        if (cell != null) {
+            cell.value = function;
+        }
+        else {
+            environment.define(stmt.slot, function);
+        }
         return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         }
         else if (stmt.elseBranch != null){
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+    public Object visitPrintStmt(Stmt.Print stmt) {
+        if (producesNumbers(stmt.expression)) {
+            double value = evaluateNumber(stmt.expression);
+            if (producedNumber) {
+                output.println(value);
+            }
+            else {
+                print(nonNumber);
+            }
+            return null;
+        }
+
+        print(evaluate(stmt.expression));
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+        if (stmt.isTailCall) {
+            value = evaluateCall((Expr.Call) stmt.value, true);
+        }
+        else if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
 
-        throw new ControlException.Return(value);
+        returnValue = value;
+        return RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
+        if (stmt.isCaptured) {
+            Object value = stmt.initializer == null ? null : evaluate(stmt.initializer);
+            environment.define(stmt.slot, new Cell(value));
+            return null;
+        }
+
+        if (environment != globals && producesNumbers(stmt.initializer)) {
+            double value = evaluateNumber(stmt.initializer);
+            if (producedNumber) {
+                environment.defineNumber(stmt.slot, value);
+            }
+            else {
+                environment.define(stmt.slot, nonNumber);
+            }
+            return null;
+        }
+
         Object value = null;
         if (stmt.initializer != null) value = evaluate(stmt.initializer);
 
-        environment.define(stmt.name.lexeme, value);
+        environment.define(stmt.slot, value);
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
         while(isTruthy(evaluate(stmt.condition))) {
-            try {
-                executeInLoop(stmt.body);
-            }
-            catch (ControlException e) {
-                if (e instanceof ControlException.Break) break;
-                if (e instanceof ControlException.Continue) {
-                    //Still carries out increment expression if in for loop
-                    if (stmt.increment != null) evaluate(stmt.increment);
-                }
-            }
+            Object completion = executeInLoop(stmt.body);
+            if (completion == BREAK) break;
+            if (completion == RETURN) return RETURN;
+            //Still carries out increment expression if in for loop, also
+            //after a continue
+            if (stmt.increment != null) evaluateForEffect(stmt.increment);
         }
         return null;
     }
@@ -138,12 +245,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.inCell) {
+            environment.assignCellAt(expr.depth, expr.slot, value);
+        }
+        else if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.slot, value);
         }
         else {
-            globals.assign(expr.name, value);
+            globals.assignGlobal(expr.name, expr.slot, value);
         }
 
         return value;
@@ -151,20 +260,42 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        Operators.BinaryOperation operation = expr.operation;
+        if (operation instanceof Operators.Arithmetic) {
+            double value = evaluateNumber(expr);
+            return producedNumber ? (Object) value : nonNumber;
+        }
+        if (operation instanceof Operators.Comparison) {
+            double left = evaluateNumber(expr.left);
+            if (!producedNumber) return operation.execute(this, expr, nonNumber, evaluate(expr.right));
+            double right = evaluateNumber(expr.right);
+            if (!producedNumber) return operation.execute(this, expr, left, nonNumber);
+
+            return ((Operators.Comparison) operation).apply(left, right);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        return expr.operation.execute(this, expr, left, right);
+    }
+
+    //Full type dispatch for nodes that have seen mixed operand types
+    Object executeBinary(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left + (double) right;
                 }
-                else if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
+                else if (LoxString.isString(left) && LoxString.isString(right)) {
+                    return LoxString.concat(left, right);
                 }
                 //Number + String converts number to a string and concatenates
-                else if ((left instanceof String && right instanceof Double) || (left instanceof Double && right instanceof String)){
-                    return stringify(left)+ stringify(right);
+                else if (LoxString.isString(left) && right instanceof Double) {
+                    return LoxString.concat(left, stringify(right));
+                }
+                else if (left instanceof Double && LoxString.isString(right)) {
+                    return LoxString.concat(stringify(left), right);
                 }
                 else {
                     throw new RuntimeError(expr.operator, "Operands must both be numbers or strings.");
@@ -183,8 +314,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left > (double) right;
                 }
-                else if (left instanceof String && right instanceof String) {
-                    return ((String) left).compareTo((String) right) > 0;
+                else if (LoxString.isString(left) && LoxString.isString(right)) {
+                    return LoxString.compare(left, right) > 0;
                 }
                 else {
                     throw new RuntimeError(expr.operator, "Operands must both be numbers or strings.");
@@ -193,8 +324,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left >= (double) right;
                 }
-                else if (left instanceof String && right instanceof String) {
-                    return ((String) left).compareTo((String) right) >= 0;
+                else if (LoxString.isString(left) && LoxString.isString(right)) {
+                    return LoxString.compare(left, right) >= 0;
                 }
                 else {
                     throw new RuntimeError(expr.operator, "Operands must both be numbers or strings.");
@@ -203,8 +334,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left < (double) right;
                 }
-                else if (left instanceof String && right instanceof String) {
-                    return ((String) left).compareTo((String) right) < 0;
+                else if (LoxString.isString(left) && LoxString.isString(right)) {
+                    return LoxString.compare(left, right) < 0;
                 }
                 else {
                     throw new RuntimeError(expr.operator, "Operands must both be numbers or strings.");
@@ -213,8 +344,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left <= (double) right;
                 }
-                else if (left instanceof String && right instanceof String) {
-                    return ((String) left).compareTo((String) right) <= 0;
+                else if (LoxString.isString(left) && LoxString.isString(right)) {
+                    return LoxString.compare(left, right) <= 0;
                 }
                 else {
                     throw new RuntimeError(expr.operator, "Operands must both be numbers or strings.");
@@ -231,34 +362,241 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return evaluateCall(expr, false);
+    }
+
+    //Methods called straight away are never bound. Arguments to Lox
+    //functions are evaluated straight into the frame of the call, and
+    //other callables get them through the fixed-arity entry points.
+    //
+    //A call in tail position is checked as usual but, if it calls a Lox
+    //function, left for LoxFunction.call to make once the function
+    //returning it has.
+    private Object evaluateCall(Expr.Call expr, boolean isTailCall) {
+        LoxInstance receiver = null;
+        Object callee;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            LoxFunction method = findMethod(get, object);
+            if (method != null) {
+                receiver = (LoxInstance) object;
+                callee = method;
+            }
+            else {
+                callee = getProperty(get, object);
+            }
+        }
+        else {
+            callee = evaluate(expr.callee);
+        }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            Environment frame = function.frame(this, receiver);
+            for (Expr argument : expr.arguments) {
+                defineArgument(frame, argument);
+            }
+            checkFunction(expr, function);
+            if (isTailCall) return tailCall(function, frame);
+            try {
+                return function.call(this, frame);
+            }
+            catch (StackOverflowError e) {
+                throw stackOverflow(expr);
+            }
         }
 
+        List<Expr> arguments = expr.arguments;
+        try {
+            return callNative(expr, callee, arguments);
+        }
+        catch (NativeError e) {
+            throw new RuntimeError(expr.paren, e.getMessage());
+        }
+    }
+
+    private Object callNative(Expr.Call expr, Object callee, List<Expr> arguments) {
+        switch (arguments.size()) {
+            case 0:
+                return checkCallee(expr, callee).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return checkCallee(expr, callee).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return checkCallee(expr, callee).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return checkCallee(expr, callee).call3(this, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                return checkCallee(expr, callee).call4(this, a, b, c, d);
+            }
+            default: {
+                Object[] values = new Object[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+                return checkCallee(expr, callee).call(this, values);
+            }
+        }
+    }
+
+    //For callers that evaluate the arguments themselves. The receiver is
+    //only set when the callee is a method returned by findMethod.
+    Object call(Expr.Call site, LoxInstance receiver, Object callee, Object[] arguments, boolean isTailCall) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            Environment frame = function.frame(this, receiver);
+            for (Object argument : arguments) {
+                frame.define(argument);
+            }
+            checkFunction(site, function);
+            if (isTailCall) return tailCall(function, frame);
+            try {
+                return function.call(this, frame);
+            }
+            catch (StackOverflowError e) {
+                throw stackOverflow(site);
+            }
+        }
+
+        try {
+            return checkCallee(site, callee).call(this, arguments);
+        }
+        catch (NativeError e) {
+            throw new RuntimeError(site.paren, e.getMessage());
+        }
+    }
+
+    //Recursion too deep for the Java stack is reported at the innermost
+    //call, like the VM reports running out of frames. Callers catch the
+    //StackOverflowError themselves so a Lox call costs no extra frame.
+    static RuntimeError stackOverflow(Expr.Call site) {
+        return new RuntimeError(site.paren, "Stack overflow.");
+    }
+
+    //Records a call for LoxFunction.call to make
+    Object tailCall(LoxFunction function, Environment frame) {
+        tailFunction = function;
+        tailFrame = frame;
+        return TAIL_CALL;
+    }
+
+    private LoxCallable checkCallee(Expr.Call site, Object callee) {
+        if (site.cache.matches(callee)) return (LoxCallable) callee;
+
         if(!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(site.paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren,
-        "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+        checkArity(site, function);
+        site.cache.update(function);
+        return function;
+    }
+
+    void checkFunction(Expr.Call site, LoxFunction function) {
+        if (!site.cache.matches(function)) {
+            checkArity(site, function);
+            site.cache.update(function);
+        }
+    }
+
+    private void checkArity(Expr.Call site, LoxCallable function) {
+        int count = site.arguments.size();
+        if (count != function.arity()) {
+            throw new RuntimeError(site.paren,
+        "Expected " + function.arity() + " arguments but got " + count + ".");
+        }
+    }
+
+    @Override
+    public Object visitArrayExpr(Expr.Array expr) {
+        LoxArray array = new LoxArray(expr.elements.size());
+        for (Expr element : expr.elements) {
+            array.add(evaluate(element));
         }
+        return array;
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        Object array = evaluate(expr.object);
+        return getIndex(expr, array, evaluate(expr.index));
+    }
 
-        return function.call(this, arguments);
+    Object getIndex(Expr.Index site, Object array, Object index) {
+        LoxArray target = indexTarget(array, site.bracket);
+        return target.get(checkIndex(target, index, site.bracket));
+    }
+
+    @Override
+    public Object visitSetIndexExpr(Expr.SetIndex expr) {
+        Object array = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+        Object value = evaluate(expr.value);
+        return setIndex(expr, array, index, value);
+    }
+
+    Object setIndex(Expr.SetIndex site, Object array, Object index, Object value) {
+        LoxArray target = indexTarget(array, site.bracket);
+        target.set(checkIndex(target, index, site.bracket), value);
+        return value;
+    }
+
+    private LoxArray indexTarget(Object object, Token bracket) {
+        if (!(object instanceof LoxArray)) {
+            throw new RuntimeError(bracket, "Only arrays can be indexed.");
+        }
+
+        return (LoxArray) object;
+    }
+
+    private int checkIndex(LoxArray array, Object index, Token bracket) {
+        String error = array.indexError(index);
+        if (error != null) throw new RuntimeError(bracket, error);
+
+        return (int) (double) index;
+    }
+
+    private int checkIndex(LoxArray array, double index, Token bracket) {
+        String error = array.indexError(index);
+        if (error != null) throw new RuntimeError(bracket, error);
+
+        return (int) index;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(expr, evaluate(expr.object));
+    }
+
+    Object getProperty(Expr.Get site, Object object) {
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return ((LoxInstance) object).get(site.name, site.cache);
         }
 
-        throw new RuntimeError(expr.name, "Only instances have properties.");
+        throw new RuntimeError(site.name, "Only instances have properties.");
+    }
+
+    //Returns the unbound method a call of the property would run, or
+    //null if the property has to be read with getProperty
+    LoxFunction findMethod(Expr.Get site, Object object) {
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).method(site.name, site.cache);
+        }
+        return null;
     }
 
     @Override
@@ -276,39 +614,39 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left = evaluate(expr.left);
-
-        if (expr.operator.type == TokenType.OR) {
-            if (isTruthy(left)) return left;
-        }
-        else {
-            if (!isTruthy(left)) return left;
-        }
-
-        return evaluate(expr.right);
+        return expr.operation.execute(this, expr, left);
     }
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-        Object object = evaluate(expr.object);
+        LoxInstance object = fieldTarget(evaluate(expr.object), expr.name);
+
+        Object value = evaluate(expr.value);
+        object.set(expr, value);
+        return value;
+    }
 
+    //The target of a property assignment is checked before the value is evaluated
+    LoxInstance fieldTarget(Object object, Token name) {
         if (!(object instanceof  LoxInstance)) {
-            throw new RuntimeError(expr.name, "Only instances have fields.");
+            throw new RuntimeError(name, "Only instances have fields.");
         }
 
-        Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
-        return value;
+        return (LoxInstance) object;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot, expr.inCell);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
+        return expr.operation.execute(this, expr, right);
+    }
 
+    Object executeUnary(Expr.Unary expr, Object right) {
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperands(expr.operator, right);
@@ -329,16 +667,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot, expr.inCell);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    //Unresolved variables (depth -1) are assumed to be global
+    private Object lookUpVariable(Token name, int depth, int slot, boolean inCell) {
+        if (inCell) {
+            return environment.getCellAt(depth, slot);
+        }
+        else if (depth >= 0) {
+            return environment.getAt(depth, slot);
         }
         else {
-            return globals.get(name);
+            return globals.getGlobal(name, slot);
         }
     }
 
@@ -350,60 +691,229 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    //Evaluates an expression without boxing the number it produces,
+    //where the expression allows that. Operands of arithmetic that has
+    //only seen numbers are evaluated the same way, so intermediate
+    //results are never boxed either.
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.operation instanceof Operators.Arithmetic) {
+                double left = evaluateNumber(binary.left);
+                if (!producedNumber) {
+                    return asNumber(binary.operation.execute(this, binary, nonNumber, evaluate(binary.right)));
+                }
+                double right = evaluateNumber(binary.right);
+                if (!producedNumber) {
+                    return asNumber(binary.operation.execute(this, binary, left, nonNumber));
+                }
+
+                return ((Operators.Arithmetic) binary.operation).apply(left, right);
+            }
+        }
+        else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.depth >= 0 && !variable.inCell) {
+                Environment scope = environment.ancestor(variable.depth);
+                if (!scope.isNumber(variable.slot)) return asNumber(scope.get(variable.slot));
+
+                producedNumber = true;
+                return scope.getNumber(variable.slot);
+            }
+        }
+        else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (Operators.sawOnlyNumbers(unary)) {
+                double operand = evaluateNumber(unary.right);
+                if (!producedNumber) return asNumber(unary.operation.execute(this, unary, nonNumber));
+
+                return -operand;
+            }
+        }
+        else if (expr instanceof Expr.Literal) {
+            return asNumber(((Expr.Literal) expr).value);
+        }
+        else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping) expr).expression);
+        }
+        //Elements of numeric arrays are read without boxing them, as is
+        //the index
+        else if (expr instanceof Expr.Index) {
+            Expr.Index index = (Expr.Index) expr;
+            Object object = evaluate(index.object);
+            double position = evaluateNumber(index.index);
+            if (!producedNumber) return asNumber(getIndex(index, object, nonNumber));
+
+            LoxArray array = indexTarget(object, index.bracket);
+            int element = checkIndex(array, position, index.bracket);
+            if (!array.isNumeric()) return asNumber(array.get(element));
+
+            producedNumber = true;
+            return array.getNumber(element);
+        }
+
+        return asNumber(evaluate(expr));
+    }
+
+    //Arguments that compute a number are passed without boxing it
+    private void defineArgument(Environment frame, Expr argument) {
+        if (!producesNumbers(argument)) {
+            frame.define(evaluate(argument));
+            return;
+        }
+
+        double value = evaluateNumber(argument);
+        if (producedNumber) {
+            frame.defineNumber(value);
+        }
+        else {
+            frame.define(nonNumber);
+        }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private double asNumber(Object value) {
+        if (value instanceof Double) {
+            producedNumber = true;
+            return (double) value;
+        }
+
+        producedNumber = false;
+        nonNumber = value;
+        return 0;
     }
 
-    private void executeInLoop(Stmt stmt) {
-        stmt.accept(this);
+    private static boolean producesNumbers(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return ((Expr.Binary) expr).operation instanceof Operators.Arithmetic;
+        }
+        if (expr instanceof Expr.Unary) {
+            return Operators.sawOnlyNumbers((Expr.Unary) expr);
+        }
+        return expr instanceof Expr.Index;
+    }
+
+    //An assignment whose value isn't used can store a number without
+    //boxing it
+    private void evaluateForEffect(Expr expr) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            if (assign.depth >= 0 && !assign.inCell && producesNumbers(assign.value)) {
+                double value = evaluateNumber(assign.value);
+                if (producedNumber) {
+                    environment.assignNumberAt(assign.depth, assign.slot, value);
+                }
+                else {
+                    environment.assignAt(assign.depth, assign.slot, nonNumber);
+                }
+                return;
+            }
+        }
+
+        else if (expr instanceof Expr.SetIndex && producesNumbers(((Expr.SetIndex) expr).value)) {
+            Expr.SetIndex set = (Expr.SetIndex) expr;
+            Object array = evaluate(set.object);
+            double position = evaluateNumber(set.index);
+            boolean numericIndex = producedNumber;
+            Object index = nonNumber;
+            double value = evaluateNumber(set.value);
+            if (!numericIndex || !producedNumber) {
+                setIndex(set, array, numericIndex ? position : index, producedNumber ? value : nonNumber);
+                return;
+            }
+
+            LoxArray target = indexTarget(array, set.bracket);
+            target.setNumber(checkIndex(target, position, set.bracket), value);
+            return;
+        }
+
+        evaluate(expr);
+    }
+
+    private Cell defineCell(int slot) {
+        Cell cell = new Cell(null);
+        environment.define(slot, cell);
+        return cell;
+    }
+
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void executeBlock(List<Stmt> stmts, Environment environment) {
+    private Object executeInLoop(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    //Returns how the block completed, like execute
+    Object executeBlock(List<Stmt> stmts, Environment environment) {
         Environment previousEnv = this.environment;
         try {
             this.environment = environment;
             for (Stmt stmt : stmts) {
-                execute(stmt);
+                Object completion = execute(stmt);
+                if (completion != null) return completion;
             }
+            return null;
         }
         finally {
             this.environment = previousEnv;
         }
     }
 
+    Environment newEnvironment(Environment enclosing) {
+        if (freeCount == 0) return new Environment(enclosing);
+
+        Environment environment = freeEnvironments[--freeCount];
+        environment.reuse(enclosing);
+        return environment;
+    }
+
+    void recycle(Environment environment) {
+        if (freeCount == freeEnvironments.length) return;
+
+        environment.clear();
+        freeEnvironments[freeCount++] = environment;
+    }
+
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
     //Null and false booleans are falsy, all other values are truthy
-    private boolean isTruthy(Object o) {
+    boolean isTruthy(Object o) {
         if (o == null) return false;
         if (o instanceof Boolean) return (boolean) o;
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    boolean isEqual(Object left, Object right) {
         if (left == null && right == null) return true;
         else if (left == null) return false;
+        //Only LoxString knows it can equal a String
+        else if (right instanceof LoxString) return right.equals(left);
 
         return left.equals(right);
     }
 
-    private String stringify(Object o) {
+    String stringify(Object o) {
         if (o == null) return "nil";
 
-        if (o instanceof Double) {
-            String text = o.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (o instanceof Double) return Output.format((double) o);
 
         return o.toString();
     }
+
+    void print(Object value) {
+        if (value instanceof Double) {
+            output.println((double) value);
+        }
+        else {
+            output.println(stringify(value));
+        }
+    }
 }
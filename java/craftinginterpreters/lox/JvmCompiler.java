@@ -0,0 +1,791 @@
+package craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import static craftinginterpreters.lox.ClassAssembler.*;
+
+//Second tier of the Interpreter. Once a function has been called often
+//enough its body is compiled into a JVM class, loaded as a hidden class,
+//and run in place of the tree walk, so HotSpot can optimize it like any
+//other Java method. Parameters and locals become JVM locals, and
+//operators the Interpreter has only seen numbers for are compiled to
+//unboxed arithmetic behind a type check that deoptimizes if it fails.
+//
+//Functions that declare functions or classes aren't compiled, since
+//those capture the environment the compiled code no longer creates.
+final class JvmCompiler implements Expr.Visitor<JvmCompiler.Kind>, Stmt.Visitor<Void> {
+    static final int THRESHOLD = 1000;
+    private static final int MAX_DEOPTIMIZATIONS = 4;
+
+    //What an expression leaves on the operand stack
+    enum Kind {
+        OBJECT, DOUBLE, BOOLEAN
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final Label next;
+        final Label end;
+
+        Loop(Loop enclosing, Label next, Label end) {
+            this.enclosing = enclosing;
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String COMPILED_FUNCTION = "craftinginterpreters/lox/CompiledFunction";
+    private static final String INTERPRETER = "craftinginterpreters/lox/Interpreter";
+    private static final String ENVIRONMENT = "craftinginterpreters/lox/Environment";
+    private static final String LOX_INSTANCE = "craftinginterpreters/lox/LoxInstance";
+    private static final String LOX_FUNCTION = "craftinginterpreters/lox/LoxFunction";
+    private static final String LOX_ARRAY = "craftinginterpreters/lox/LoxArray";
+    private static final String TOKEN = "craftinginterpreters/lox/Token";
+    private static final String BINARY = "craftinginterpreters/lox/Expr$Binary";
+    private static final String CALL_NODE = "craftinginterpreters/lox/Expr$Call";
+    private static final String GET_NODE = "craftinginterpreters/lox/Expr$Get";
+    private static final String INDEX_NODE = "craftinginterpreters/lox/Expr$Index";
+    private static final String SET_NODE = "craftinginterpreters/lox/Expr$Set";
+    private static final String SET_INDEX_NODE = "craftinginterpreters/lox/Expr$SetIndex";
+    private static final String UNARY = "craftinginterpreters/lox/Expr$Unary";
+
+    private static final String CONSTRUCTOR = "(Lcraftinginterpreters/lox/Stmt$Function;[Ljava/lang/Object;)V";
+    private static final String CALL = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";)L" + OBJECT + ";";
+
+    //Locals of the generated call method
+    private static final int SELF = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int FRAME_LOCAL = 2;
+    //Read from the frame on entry
+    private static final int CLOSURE_LOCAL = 3;
+
+    private final Stmt.Function function;
+    private final boolean isMethod;
+    private final ClassAssembler assembler;
+    private final ClassAssembler.Code code;
+    private final List<Object> constants = new ArrayList<>();
+    //The JVM local each resolver slot of the frame maps to. Blocks share
+    //the frame, so anything at a depth past it is read from the closure.
+    private final List<Integer> locals = new ArrayList<>();
+    private Loop loop = null;
+
+    private JvmCompiler(Stmt.Function function, boolean isMethod) {
+        this.function = function;
+        this.isMethod = isMethod;
+        assembler = new ClassAssembler(COMPILED_FUNCTION + "$" + function.name.lexeme, COMPILED_FUNCTION);
+
+        ClassAssembler.Code constructor = assembler.method(ACC_PUBLIC, "<init>", CONSTRUCTOR);
+        constructor.load(ALOAD, 0);
+        constructor.load(ALOAD, 1);
+        constructor.load(ALOAD, 2);
+        constructor.invoke(INVOKESPECIAL, COMPILED_FUNCTION, "<init>", CONSTRUCTOR);
+        constructor.op(RETURN, 0);
+
+        code = assembler.method(ACC_PUBLIC, "call", CALL);
+    }
+
+    //Counts a call of an interpreted function and returns the compiled
+    //version once the function has become hot
+    static CompiledFunction countCall(Stmt.Function declaration, boolean isMethod) {
+        if (++declaration.calls != THRESHOLD) return null;
+        if (declaration.deoptimizations >= MAX_DEOPTIMIZATIONS) return null;
+
+        declaration.compiled = compile(declaration, isMethod);
+        if (declaration.compiled == null) {
+            //Not worth trying again
+            declaration.deoptimizations = MAX_DEOPTIMIZATIONS;
+        }
+        return declaration.compiled;
+    }
+
+    private static CompiledFunction compile(Stmt.Function function, boolean isMethod) {
+        try {
+            JvmCompiler compiler = new JvmCompiler(function, isMethod);
+            byte[] bytes = compiler.compileBody();
+
+            Class<?> compiled = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            return (CompiledFunction) compiled
+                    .getDeclaredConstructor(Stmt.Function.class, Object[].class)
+                    .newInstance(function, compiler.constants.toArray());
+        }
+        catch (Unsupported | TooLarge e) {
+            return null;
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException("Generated invalid code for '" + function.name.lexeme + "'.", e);
+        }
+    }
+
+    private byte[] compileBody() {
+        code.newLocal(1);
+        code.load(ALOAD, FRAME_LOCAL);
+        code.field(GETFIELD, ENVIRONMENT, "enclosing", "L" + ENVIRONMENT + ";");
+        code.store(ASTORE, CLOSURE_LOCAL);
+
+        //The receiver of a method is in the slot before the parameters
+        int slots = function.params.size() + (isMethod ? 1 : 0);
+        for (int slot = 0; slot < slots; slot++) {
+            code.load(ALOAD, FRAME_LOCAL);
+            code.iconst(slot);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(I)L" + OBJECT + ";");
+            locals.add(declareLocal());
+        }
+
+        for (Stmt statement : function.body) {
+            statement.accept(this);
+        }
+
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        return assembler.toBytes();
+    }
+
+    //Stores the value on top of the stack in a new JVM local
+    private int declareLocal() {
+        int local = code.newLocal(1);
+        code.store(ASTORE, local);
+        return local;
+    }
+
+    private Kind compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void compileObject(Expr expr) {
+        box(compile(expr));
+    }
+
+    private void box(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)L" + DOUBLE + ";");
+        }
+        else if (kind == Kind.BOOLEAN) {
+            code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)L" + BOOLEAN + ";");
+        }
+    }
+
+    private void unbox(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            code.type(CHECKCAST, DOUBLE);
+            code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+        }
+        else if (kind == Kind.BOOLEAN) {
+            code.type(CHECKCAST, BOOLEAN);
+            code.invoke(INVOKEVIRTUAL, BOOLEAN, "booleanValue", "()Z");
+        }
+    }
+
+    private void pop(Kind kind) {
+        code.op(kind == Kind.DOUBLE ? POP2 : POP, kind == Kind.DOUBLE ? -2 : -1);
+    }
+
+    //Leaves the truthiness of an expression as an int
+    private void compileCondition(Expr expr) {
+        Kind kind = compile(expr);
+        if (kind == Kind.DOUBLE) {
+            pop(kind);
+            code.op(ICONST_1, 1);
+        }
+        else if (kind == Kind.OBJECT) {
+            isTruthy();
+        }
+    }
+
+    private void isTruthy() {
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        code.op(SWAP, 0);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+    }
+
+    private void constant(Object value, String type) {
+        code.load(ALOAD, SELF);
+        code.field(GETFIELD, COMPILED_FUNCTION, "constants", "[L" + OBJECT + ";");
+        code.iconst(constants.size());
+        code.op(AALOAD, -1);
+        code.type(CHECKCAST, type);
+        constants.add(value);
+    }
+
+    private void loadVariable(Token name, int depth, int slot) {
+        if (depth < 0) {
+            code.load(ALOAD, INTERPRETER_LOCAL);
+            code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+            constant(name, TOKEN);
+            code.iconst(slot);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getGlobal", "(L" + TOKEN + ";I)L" + OBJECT + ";");
+        }
+        else if (depth == 0) {
+            code.load(ALOAD, locals.get(slot));
+        }
+        else {
+            //Variables of enclosing functions are cells in the closure
+            code.load(ALOAD, CLOSURE_LOCAL);
+            code.iconst(depth - 1);
+            code.iconst(slot);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getCellAt", "(II)L" + OBJECT + ";");
+        }
+    }
+
+    //Saves an operand in a new local so both operands of an operator
+    //can be read again by its fast and slow paths
+    private int spill(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            int local = code.newLocal(2);
+            code.store(DSTORE, local);
+            return local;
+        }
+
+        box(kind);
+        int local = code.newLocal(1);
+        code.store(ASTORE, local);
+        return local;
+    }
+
+    private void loadSpilled(Kind kind, int local) {
+        if (kind == Kind.DOUBLE) {
+            code.load(DLOAD, local);
+        }
+        else {
+            code.load(ALOAD, local);
+            unbox(Kind.DOUBLE);
+        }
+    }
+
+    private void loadSpilledObject(Kind kind, int local) {
+        if (kind == Kind.DOUBLE) {
+            code.load(DLOAD, local);
+            box(kind);
+        }
+        else {
+            code.load(ALOAD, local);
+        }
+    }
+
+    //Jumps to the slow path unless the spilled operand is a number
+    private boolean guardNumber(Kind kind, int local, Label slowPath) {
+        if (kind == Kind.DOUBLE) return false;
+
+        code.load(ALOAD, local);
+        code.type(INSTANCEOF, DOUBLE);
+        code.jump(IFEQ, slowPath);
+        return true;
+    }
+
+    //Turns the result of dcmpl or dcmpg into a boolean
+    private void compareResult(int jumpIfTrue) {
+        Label isTrue = code.newLabel();
+        Label end = code.newLabel();
+        code.jump(jumpIfTrue, isTrue);
+        code.op(ICONST_0, 1);
+        code.jump(GOTO, end);
+        code.setStack(code.stack() - 1);
+        code.place(isTrue);
+        code.op(ICONST_1, 1);
+        code.place(end);
+    }
+
+    private Kind compileNumberBinary(Expr.Binary expr) {
+        Kind leftKind = compile(expr.left);
+        int left = spill(leftKind);
+        Kind rightKind = compile(expr.right);
+        int right = spill(rightKind);
+        int stack = code.stack();
+
+        Label slowPath = code.newLabel();
+        boolean guarded = guardNumber(leftKind, left, slowPath);
+        guarded |= guardNumber(rightKind, right, slowPath);
+
+        loadSpilled(leftKind, left);
+        loadSpilled(rightKind, right);
+        Kind result;
+        //NaN compares false, so it has to make dcmpl and dcmpg fail the test
+        switch (expr.operator.type) {
+            case PLUS:
+                code.op(DADD, -2);
+                box(Kind.DOUBLE);
+                result = Kind.OBJECT;
+                break;
+            case MINUS: code.op(DSUB, -2); result = Kind.DOUBLE; break;
+            case STAR: code.op(DMUL, -2); result = Kind.DOUBLE; break;
+            case SLASH: code.op(DDIV, -2); result = Kind.DOUBLE; break;
+            case GREATER: code.op(DCMPL, -3); compareResult(IFGT); result = Kind.BOOLEAN; break;
+            case GREATER_EQUAL: code.op(DCMPL, -3); compareResult(IFGE); result = Kind.BOOLEAN; break;
+            case LESS: code.op(DCMPG, -3); compareResult(IFLT); result = Kind.BOOLEAN; break;
+            case LESS_EQUAL: code.op(DCMPG, -3); compareResult(IFLE); result = Kind.BOOLEAN; break;
+            default: throw new Unsupported();
+        }
+        if (!guarded) return result;
+
+        Label end = code.newLabel();
+        code.jump(GOTO, end);
+        code.setStack(stack);
+        code.place(slowPath);
+        code.load(ALOAD, SELF);
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, BINARY);
+        loadSpilledObject(leftKind, left);
+        loadSpilledObject(rightKind, right);
+        code.invoke(INVOKEVIRTUAL, COMPILED_FUNCTION, "deoptimize",
+                "(L" + INTERPRETER + ";L" + BINARY + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        unbox(result);
+        code.place(end);
+        return result;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        code.jump(GOTO, loop.end);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        code.jump(GOTO, loop.next);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    //Counted code stays in the Interpreter, which keeps the counts
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        pop(compile(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseBranch = code.newLabel();
+        compileCondition(stmt.condition);
+        code.jump(IFEQ, elseBranch);
+        stmt.thenBranch.accept(this);
+
+        if (stmt.elseBranch == null) {
+            code.place(elseBranch);
+            return null;
+        }
+
+        Label end = code.newLabel();
+        code.jump(GOTO, end);
+        code.place(elseBranch);
+        stmt.elseBranch.accept(this);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        compileObject(stmt.expression);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "print", "(L" + OBJECT + ";)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            code.op(ACONST_NULL, 1);
+        }
+        else if (stmt.isTailCall) {
+            compileCall((Expr.Call) stmt.value, true);
+        }
+        else {
+            compileObject(stmt.value);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            code.op(ACONST_NULL, 1);
+        }
+        else {
+            compileObject(stmt.initializer);
+        }
+        //Sibling blocks reuse slots, so a slot may map to several locals
+        //over the function, but only ever to one in scope
+        int local = declareLocal();
+        while (locals.size() <= stmt.slot) locals.add(null);
+        locals.set(stmt.slot, local);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label start = code.newLabel();
+        loop = new Loop(loop, code.newLabel(), code.newLabel());
+
+        code.place(start);
+        compileCondition(stmt.condition);
+        code.jump(IFEQ, loop.end);
+        stmt.body.accept(this);
+
+        code.place(loop.next);
+        if (stmt.increment != null) {
+            pop(compile(stmt.increment));
+        }
+        code.jump(GOTO, start);
+        code.place(loop.end);
+
+        loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Kind visitAssignExpr(Expr.Assign expr) {
+        compileObject(expr.value);
+
+        if (expr.depth == 0) {
+            code.op(DUP, 1);
+            code.store(ASTORE, locals.get(expr.slot));
+            return Kind.OBJECT;
+        }
+
+        int value = code.newLocal(1);
+        code.store(ASTORE, value);
+        if (expr.depth < 0) {
+            code.load(ALOAD, INTERPRETER_LOCAL);
+            code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+            constant(expr.name, TOKEN);
+            code.iconst(expr.slot);
+            code.load(ALOAD, value);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assignGlobal", "(L" + TOKEN + ";IL" + OBJECT + ";)V");
+        }
+        else {
+            code.load(ALOAD, CLOSURE_LOCAL);
+            code.iconst(expr.depth - 1);
+            code.iconst(expr.slot);
+            code.load(ALOAD, value);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assignCellAt", "(IIL" + OBJECT + ";)V");
+        }
+        code.load(ALOAD, value);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitBinaryExpr(Expr.Binary expr) {
+        TokenType operator = expr.operator.type;
+        if (operator == TokenType.EQUAL_EQUAL || operator == TokenType.BANG_EQUAL) {
+            code.load(ALOAD, INTERPRETER_LOCAL);
+            compileObject(expr.left);
+            compileObject(expr.right);
+            code.invoke(INVOKEVIRTUAL, INTERPRETER, "isEqual", "(L" + OBJECT + ";L" + OBJECT + ";)Z");
+            if (operator == TokenType.BANG_EQUAL) {
+                code.op(ICONST_1, 1);
+                code.op(IXOR, -1);
+            }
+            return Kind.BOOLEAN;
+        }
+
+        if (Operators.sawOnlyNumbers(expr)) {
+            return compileNumberBinary(expr);
+        }
+
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, BINARY);
+        compileObject(expr.left);
+        compileObject(expr.right);
+        code.invoke(INVOKESTATIC, COMPILED_FUNCTION, "binary",
+                "(L" + INTERPRETER + ";L" + BINARY + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitCallExpr(Expr.Call expr) {
+        return compileCall(expr, false);
+    }
+
+    //Tail calls to Lox functions are only checked and recorded for
+    //LoxFunction.call to make
+    private Kind compileCall(Expr.Call expr, boolean isTailCall) {
+        if (expr.callee instanceof Expr.Get) return compileMethodCall(expr, (Expr.Get) expr.callee, isTailCall);
+
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, CALL_NODE);
+        code.op(ACONST_NULL, 1);
+        compileObject(expr.callee);
+        finishCall(expr, isTailCall);
+        return Kind.OBJECT;
+    }
+
+    //Like the Interpreter, a method found on an instance is called with
+    //the instance as its receiver instead of being bound. Otherwise the
+    //property is read before the arguments and called as a value.
+    private Kind compileMethodCall(Expr.Call expr, Expr.Get get, boolean isTailCall) {
+        compileObject(get.object);
+        code.op(DUP, 1);
+        int object = declareLocal();
+        int receiver = declareLocal();
+
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(get, GET_NODE);
+        code.load(ALOAD, object);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "findMethod",
+                "(L" + GET_NODE + ";L" + OBJECT + ";)L" + LOX_FUNCTION + ";");
+        int callee = declareLocal();
+
+        Label found = code.newLabel();
+        code.load(ALOAD, callee);
+        code.jump(IFNONNULL, found);
+        code.op(ACONST_NULL, 1);
+        code.store(ASTORE, receiver);
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(get, GET_NODE);
+        code.load(ALOAD, object);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "getProperty", "(L" + GET_NODE + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        code.store(ASTORE, callee);
+        code.place(found);
+
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, CALL_NODE);
+        code.load(ALOAD, receiver);
+        code.type(CHECKCAST, LOX_INSTANCE);
+        code.load(ALOAD, callee);
+        finishCall(expr, isTailCall);
+        return Kind.OBJECT;
+    }
+
+    //Expects the interpreter, call node, receiver and callee on the stack
+    private void finishCall(Expr.Call expr, boolean isTailCall) {
+        code.iconst(expr.arguments.size());
+        code.type(ANEWARRAY, OBJECT);
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.iconst(i);
+            compileObject(expr.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+        code.iconst(isTailCall ? 1 : 0);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "call",
+                "(L" + CALL_NODE + ";L" + LOX_INSTANCE + ";L" + OBJECT + ";[L" + OBJECT + ";Z)L" + OBJECT + ";");
+    }
+
+    @Override
+    public Kind visitArrayExpr(Expr.Array expr) {
+        code.iconst(expr.elements.size());
+        code.type(ANEWARRAY, OBJECT);
+        for (int i = 0; i < expr.elements.size(); i++) {
+            code.op(DUP, 1);
+            code.iconst(i);
+            compileObject(expr.elements.get(i));
+            code.op(AASTORE, -3);
+        }
+        code.invoke(INVOKESTATIC, LOX_ARRAY, "of", "([L" + OBJECT + ";)L" + LOX_ARRAY + ";");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitIndexExpr(Expr.Index expr) {
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, INDEX_NODE);
+        compileObject(expr.object);
+        compileObject(expr.index);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "getIndex",
+                "(L" + INDEX_NODE + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitGetExpr(Expr.Get expr) {
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, GET_NODE);
+        compileObject(expr.object);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "getProperty", "(L" + GET_NODE + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Kind visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) {
+            code.ldc((double) expr.value);
+            return Kind.DOUBLE;
+        }
+        if (expr.value instanceof Boolean) {
+            code.op((boolean) expr.value ? ICONST_1 : ICONST_0, 1);
+            return Kind.BOOLEAN;
+        }
+        if (expr.value instanceof String) {
+            code.ldc((String) expr.value);
+        }
+        else {
+            code.op(ACONST_NULL, 1);
+        }
+        return Kind.OBJECT;
+    }
+
+    //Logical operators produce one of their operands, so the result is
+    //only a plain boolean when both operands are
+    @Override
+    public Kind visitLogicalExpr(Expr.Logical expr) {
+        int shortCircuit = expr.operator.type == TokenType.OR ? IFNE : IFEQ;
+        Label end = code.newLabel();
+
+        Kind leftKind = compile(expr.left);
+        if (leftKind != Kind.BOOLEAN) {
+            box(leftKind);
+            code.op(DUP, 1);
+            isTruthy();
+            code.jump(shortCircuit, end);
+            code.op(POP, -1);
+            compileObject(expr.right);
+            code.place(end);
+            return Kind.OBJECT;
+        }
+
+        Label leftResult = code.newLabel();
+        code.op(DUP, 1);
+        code.jump(shortCircuit, leftResult);
+        code.op(POP, -1);
+        Kind rightKind = compile(expr.right);
+        if (rightKind == Kind.BOOLEAN) {
+            code.place(leftResult);
+            return Kind.BOOLEAN;
+        }
+
+        box(rightKind);
+        code.jump(GOTO, end);
+        code.place(leftResult);
+        box(Kind.BOOLEAN);
+        code.place(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitSetExpr(Expr.Set expr) {
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        compileObject(expr.object);
+        constant(expr.name, TOKEN);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "fieldTarget", "(L" + OBJECT + ";L" + TOKEN + ";)L" + LOX_INSTANCE + ";");
+
+        constant(expr, SET_NODE);
+        compileObject(expr.value);
+        code.op(DUP_X2, 1);
+        code.invoke(INVOKEVIRTUAL, LOX_INSTANCE, "set", "(L" + SET_NODE + ";L" + OBJECT + ";)V");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitSetIndexExpr(Expr.SetIndex expr) {
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, SET_INDEX_NODE);
+        compileObject(expr.object);
+        compileObject(expr.index);
+        compileObject(expr.value);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "setIndex",
+                "(L" + SET_INDEX_NODE + ";L" + OBJECT + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitThisExpr(Expr.This expr) {
+        loadVariable(expr.keyword, expr.depth, expr.slot);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            compileCondition(expr.right);
+            code.op(ICONST_1, 1);
+            code.op(IXOR, -1);
+            return Kind.BOOLEAN;
+        }
+
+        if (!Operators.sawOnlyNumbers(expr)) {
+            code.load(ALOAD, INTERPRETER_LOCAL);
+            constant(expr, UNARY);
+            compileObject(expr.right);
+            code.invoke(INVOKESTATIC, COMPILED_FUNCTION, "unary",
+                    "(L" + INTERPRETER + ";L" + UNARY + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return Kind.OBJECT;
+        }
+
+        Kind kind = compile(expr.right);
+        if (kind == Kind.DOUBLE) {
+            code.op(DNEG, 0);
+            return Kind.DOUBLE;
+        }
+
+        int operand = spill(kind);
+        int stack = code.stack();
+        Label slowPath = code.newLabel();
+        Label end = code.newLabel();
+        guardNumber(kind, operand, slowPath);
+        loadSpilled(kind, operand);
+        code.op(DNEG, 0);
+        code.jump(GOTO, end);
+
+        code.setStack(stack);
+        code.place(slowPath);
+        code.load(ALOAD, SELF);
+        code.load(ALOAD, INTERPRETER_LOCAL);
+        constant(expr, UNARY);
+        code.load(ALOAD, operand);
+        code.invoke(INVOKEVIRTUAL, COMPILED_FUNCTION, "deoptimize",
+                "(L" + INTERPRETER + ";L" + UNARY + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        unbox(Kind.DOUBLE);
+        code.place(end);
+        return Kind.DOUBLE;
+    }
+
+    @Override
+    public Kind visitTernaryExpr(Expr.Ternary expr) {
+        Label falseExpr = code.newLabel();
+        Label end = code.newLabel();
+
+        compileCondition(expr.condition);
+        code.jump(IFEQ, falseExpr);
+        compileObject(expr.trueExpr);
+        code.jump(GOTO, end);
+        code.setStack(code.stack() - 1);
+        code.place(falseExpr);
+        compileObject(expr.falseExpr);
+        code.place(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitVariableExpr(Expr.Variable expr) {
+        loadVariable(expr.name, expr.depth, expr.slot);
+        return Kind.OBJECT;
+    }
+}
@@ -0,0 +1,123 @@
+package craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//Wraps every statement of a script in a Counted node, which counts how
+//often the statement runs and times it. Programs run without it have no
+//Counted nodes, so they pay nothing for it.
+//
+//Time is kept per source line and is cumulative: it includes whatever
+//the line's statements call. A line only starts its timer when none of
+//its statements is already running, so statements nested on one line
+//and recursive calls aren't counted twice. Declarations aren't counted
+//themselves, only the statements in their bodies.
+//
+//At the end the script is listed with the count and time of each line,
+//and the same numbers are written as JSON.
+class LineCounter extends AstRewriter {
+    private final String path;
+    private final Map<Integer, Timer> timers = new HashMap<>();
+    private final List<Stmt.Counted> counters = new ArrayList<>();
+
+    //Shared by the Counted nodes of a line
+    static final class Timer {
+        private int active = 0;
+        private long start;
+        long nanos = 0;
+
+        void start() {
+            if (active++ == 0) start = System.nanoTime();
+        }
+
+        void stop() {
+            if (--active == 0) nanos += System.nanoTime() - start;
+        }
+    }
+
+    LineCounter(String path) {
+        this.path = path;
+    }
+
+    @Override
+    String name() {
+        return "count-lines";
+    }
+
+    @Override
+    Stmt rewrite(Stmt stmt) {
+        Stmt result = super.rewrite(stmt);
+        if (stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) return result;
+
+        Stmt.Counted counted = new Stmt.Counted(result);
+        counted.line = stmt.line;
+        counted.timer = timers.computeIfAbsent(stmt.line, line -> new Timer());
+        counters.add(counted);
+        changes++;
+        return counted;
+    }
+
+    void report(String script, String source) throws IOException {
+        //A line runs as often as the statement on it that runs most
+        Map<Integer, Long> counts = new HashMap<>();
+        for (Stmt.Counted counter : counters) {
+            counts.merge(counter.line, counter.count, Math::max);
+        }
+
+        String[] lines = source.split("\r?\n");
+        System.err.println(String.format("%10s %10s  %s", "count", "time ms", script));
+        for (int i = 0; i < lines.length; i++) {
+            Long count = counts.get(i + 1);
+            if (count == null) {
+                System.err.println(String.format("%10s %10s  %s", "", "", lines[i]));
+            }
+            else {
+                double millis = timers.get(i + 1).nanos / 1e6;
+                System.err.println(String.format("%10d %10.1f  %s", count, millis, lines[i]));
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path), Charset.defaultCharset()))) {
+            out.println("{");
+            out.println("  \"script\": " + quote(script) + ",");
+            out.println("  \"lines\": [");
+            boolean first = true;
+            for (int i = 0; i < lines.length; i++) {
+                Long count = counts.get(i + 1);
+                if (count == null) continue;
+
+                if (!first) out.println(",");
+                first = false;
+                out.print("    {\"line\": " + (i + 1) + ", \"count\": " + count
+                        + ", \"nanos\": " + timers.get(i + 1).nanos + ", \"source\": " + quote(lines[i].trim()) + "}");
+            }
+            if (!first) out.println();
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -1,36 +1,179 @@
 package craftinginterpreters.lox;
 
+import craftinginterpreters.lox.vm.FunctionProto;
+import craftinginterpreters.lox.vm.VM;
+import craftinginterpreters.lox.vm.VmRuntimeError;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    //Results kept for each memoized function unless --memoize says otherwise
+    private static final int DEFAULT_MEMO_ENTRIES = 1024;
+    private static final String DEFAULT_PROFILE_PATH = "profile.folded";
+    private static final String DEFAULT_LINE_COUNTS_PATH = "lines.json";
+    //Characters of print output held before writing it out
+    private static final int DEFAULT_OUTPUT_BUFFER = 1 << 16;
+    //Created once the flags say how to buffer output
+    private static Output output = null;
+    private static Interpreter interpreter = null;
+    private static VM vm = null;
+    private static boolean compileClosures = false;
+    private static Optimizer optimizer = null;
+    private static Memoizer memoizer = null;
+    private static Profiler profiler = null;
+    private static LineCounter lineCounter = null;
+    //The script being run, for the line count listing
+    private static String source = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
+        String script = null;
+        List<String> passes = Optimizer.PASSES;
+        boolean reportPasses = false;
+        boolean reportMemo = false;
+        boolean useVm = false;
+        boolean tieredCompilation = false;
+        int outputBuffer = DEFAULT_OUTPUT_BUFFER;
+        Output.Flush flush = null;
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            }
+            else if (arg.equals("--closures")) {
+                compileClosures = true;
+            }
+            else if (arg.equals("--jit")) {
+                tieredCompilation = true;
+            }
+            else if (arg.startsWith("--passes=")) {
+                passes = parsePasses(arg.substring("--passes=".length()));
+            }
+            else if (arg.equals("--report-passes")) {
+                reportPasses = true;
+            }
+            else if (arg.equals("--memoize")) {
+                memoizer = new Memoizer(DEFAULT_MEMO_ENTRIES);
+            }
+            else if (arg.startsWith("--memoize=")) {
+                memoizer = new Memoizer(parseCount(arg.substring("--memoize=".length())));
+            }
+            else if (arg.equals("--report-memo")) {
+                reportMemo = true;
+            }
+            else if (arg.equals("--profile")) {
+                profiler = new Profiler(DEFAULT_PROFILE_PATH);
+            }
+            else if (arg.startsWith("--profile=")) {
+                profiler = new Profiler(arg.substring("--profile=".length()));
+            }
+            else if (arg.equals("--count-lines")) {
+                lineCounter = new LineCounter(DEFAULT_LINE_COUNTS_PATH);
+            }
+            else if (arg.startsWith("--count-lines=")) {
+                lineCounter = new LineCounter(arg.substring("--count-lines=".length()));
+            }
+            else if (arg.startsWith("--output-buffer=")) {
+                outputBuffer = parseCount(arg.substring("--output-buffer=".length()));
+            }
+            else if (arg.startsWith("--flush=")) {
+                flush = parseFlush(arg.substring("--flush=".length()));
+            }
+            else if (arg.startsWith("--") || script != null) {
+                usage();
+            }
+            else {
+                script = arg;
+            }
+        }
+
+        //Every line of the REPL would be line 1, and the VM doesn't count
+        if (lineCounter != null && (script == null || useVm)) usage();
+        //The VM calls functions without going through LoxFunction
+        if ((memoizer != null || reportMemo) && useVm) usage();
+
+        //Someone is reading each line the REPL prints as soon as it's printed
+        if (flush == null) flush = script == null ? Output.Flush.LINE : Output.Flush.SIZE;
+        output = new Output(System.out, outputBuffer, flush);
+        interpreter = new Interpreter(output);
+        interpreter.tieredCompilation = tieredCompilation;
+        if (useVm) vm = new VM(output);
+
+        optimizer = new Optimizer(interpreter, passes, reportPasses);
+        if (profiler != null) {
+            interpreter.profiler = profiler;
+            if (vm != null) vm.setProfiler(profiler);
+            profiler.start();
+        }
+
+        int status = 0;
+        try {
+            if (script != null) {
+                status = runFile(script);
+            }
+            else {
+                runPrompt();
+            }
         }
-        else if (args.length == 1) {
-            runFile(args[0]);
+        finally {
+            output.flush();
+            if (reportMemo && memoizer != null) memoizer.report();
+            if (profiler != null) {
+                profiler.stop();
+                profiler.report();
+            }
+            if (lineCounter != null && source != null) lineCounter.report(script, source);
         }
-        else {
-            runPrompt();
+        if (status != 0) System.exit(status);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm | --closures | --jit] [--passes=<pass,...>] [--report-passes]"
+                + " [--memoize[=<entries>]] [--report-memo] [--profile[=<file>]] [--count-lines[=<file>]]"
+                + " [--output-buffer=<chars>] [--flush=exit|line|size] [script]");
+        System.out.println("Passes: " + String.join(", ", Optimizer.PASSES));
+        System.exit(64);
+    }
+
+    private static List<String> parsePasses(String list) {
+        List<String> passes = new ArrayList<>();
+        if (list.isEmpty()) return passes;
+
+        for (String pass : list.split(",")) {
+            if (!Optimizer.PASSES.contains(pass)) usage();
+            passes.add(pass);
+        }
+        return passes;
+    }
+
+    private static int parseCount(String count) {
+        if (!count.matches("[1-9][0-9]{0,8}")) usage();
+        return Integer.parseInt(count);
+    }
+
+    private static Output.Flush parseFlush(String mode) {
+        for (Output.Flush flush : Output.Flush.values()) {
+            if (flush.name().toLowerCase().equals(mode)) return flush;
         }
+        usage();
+        return null;
     }
 
-    private static void runFile(String path) throws IOException {
+    //Returns the status to exit with
+    private static int runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        source = new String(bytes, Charset.defaultCharset());
+        run(source);
+        if (hadError) return 65;
+        if (hadRuntimeError) return 70;
+        return 0;
     }
 
     private static void runPrompt() throws IOException {
@@ -54,11 +197,35 @@ public class Lox {
         List<Stmt> parsedStmts = parser.parse();
         if (hadError) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver(interpreter.globals);
         resolver.resolve(parsedStmts);
         if (hadError) return;
 
-        interpreter.interpret(parsedStmts);
+        List<Stmt> statements = optimizer.optimize(parsedStmts);
+        if (lineCounter != null) statements = lineCounter.rewrite(statements);
+        if (memoizer != null) memoizer.analyze(statements);
+
+        if (vm != null) {
+            runVm(statements);
+        }
+        else if (compileClosures) {
+            interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+        }
+        else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    private static void runVm(List<Stmt> statements) {
+        FunctionProto script = new BytecodeCompiler(vm).compile(statements);
+        if (hadError) return;
+
+        try {
+            vm.interpret(script);
+        }
+        catch (VmRuntimeError e) {
+            runtimeError(e.getMessage(), e.line);
+        }
     }
 
     static void error(int line, String message) {
@@ -77,7 +244,17 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError e) {
-        System.err.println(e.getMessage() + "\n[line " + e.token.line + "]");
+        runtimeError(e.getMessage(), e.token.line);
+    }
+
+    //Every engine's runtime errors end up here, so this is where they are
+    //recorded for Flight Recorder
+    private static void runtimeError(String message, int line) {
+        Events.runtimeError(message, line);
+
+        //Keeps what the program printed before the error ahead of it
+        output.flush();
+        System.err.println(message + "\n[line " + line + "]");
         hadRuntimeError = true;
     }
 
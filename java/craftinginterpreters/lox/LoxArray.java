@@ -0,0 +1,169 @@
+package craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+//The array value. While every element is a number they are kept
+//unboxed in a double[], and only moved to an Object[] once something
+//else is stored. Numeric arrays can be read without boxing through
+//getNumber.
+public class LoxArray {
+    private double[] numbers;
+    //Null while the array is numeric
+    private Object[] values = null;
+    private int size = 0;
+
+    public LoxArray(int capacity) {
+        numbers = new double[Math.max(capacity, 4)];
+    }
+
+    public static LoxArray of(Object[] elements) {
+        LoxArray array = new LoxArray(elements.length);
+        for (Object element : elements) {
+            array.add(element);
+        }
+        return array;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isNumeric() {
+        return values == null;
+    }
+
+    public Object get(int index) {
+        if (values == null) return numbers[index];
+        return values[index];
+    }
+
+    //Only valid while the array is numeric
+    public double getNumber(int index) {
+        return numbers[index];
+    }
+
+    public void set(int index, Object value) {
+        if (values == null) {
+            if (value instanceof Double) {
+                numbers[index] = (double) value;
+                return;
+            }
+            box();
+        }
+        values[index] = value;
+    }
+
+    public void setNumber(int index, double value) {
+        if (values == null) {
+            numbers[index] = value;
+        }
+        else {
+            values[index] = value;
+        }
+    }
+
+    public void add(Object value) {
+        if (size == capacity()) grow();
+        size++;
+        set(size - 1, value);
+    }
+
+    //The error for indexing the array with a value, or null if it's a
+    //valid index
+    public String indexError(Object index) {
+        if (!(index instanceof Double)) return "Array index must be a number.";
+        return indexError((double) index);
+    }
+
+    public String indexError(double index) {
+        if (index != Math.floor(index)) return "Array index must be a whole number.";
+        if (index < 0 || index >= size) return "Array index out of bounds.";
+        return null;
+    }
+
+    private int capacity() {
+        return values == null ? numbers.length : values.length;
+    }
+
+    private void grow() {
+        if (values == null) {
+            numbers = Arrays.copyOf(numbers, numbers.length * 2);
+        }
+        else {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+    }
+
+    private void box() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    //The length of an array, map or string, for the len native
+    public static double length(Object value) {
+        if (value instanceof LoxArray) return ((LoxArray) value).size;
+        if (value instanceof LoxMap) return ((LoxMap) value).size();
+        if (LoxString.isString(value)) return value.toString().length();
+        throw new NativeError("Can only take the length of arrays, maps and strings.");
+    }
+
+    //Appends to an array, for the push native
+    public static void push(Object array, Object value) {
+        if (!(array instanceof LoxArray)) throw new NativeError("Can only push onto arrays.");
+        ((LoxArray) array).add(value);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        appendTo(text, printing());
+        return text.toString();
+    }
+
+    //An array that contains itself is shown as [...] inside itself
+    void appendTo(StringBuilder text, Set<Object> printing) {
+        if (!printing.add(this)) {
+            text.append("[...]");
+            return;
+        }
+
+        text.append("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) text.append(", ");
+            appendValue(text, get(i), printing);
+        }
+        text.append("]");
+        printing.remove(this);
+    }
+
+    //The arrays and maps being printed, which an element refers back to
+    //if it is one of them
+    static Set<Object> printing() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    //Writes an element the way print would show it
+    static void appendValue(StringBuilder text, Object value, Set<Object> printing) {
+        if (value == null) {
+            text.append("nil");
+        }
+        else if (value instanceof Double) {
+            text.append(Output.format((double) value));
+        }
+        else if (value instanceof LoxArray) {
+            ((LoxArray) value).appendTo(text, printing);
+        }
+        else if (value instanceof LoxMap) {
+            ((LoxMap) value).appendTo(text, printing);
+        }
+        else {
+            text.append(value);
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package craftinginterpreters.lox;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     final String name;
+    //Every instance starts out with this shape
+    final Shape emptyShape = new Shape();
     private final Map<String, LoxFunction> methods;
 
     LoxClass(String name, Map<String, LoxFunction> methods) {
@@ -24,16 +25,18 @@ public class LoxClass implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
         LoxInstance instance = new LoxInstance(this);
+        Events.instanceCreated(this);
         return instance;
     }
 
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-
-        return null;
+        return methods.get(name);
     }
 }
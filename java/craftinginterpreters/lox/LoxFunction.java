@@ -1,20 +1,36 @@
 package craftinginterpreters.lox;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
+    final Stmt.Function declaration;
     private final Environment closure;
+    //Methods are resolved with 'this' in the first slot of their own
+    //scope, so binding one only needs to remember the receiver
+    private final boolean isMethod;
+    private final LoxInstance receiver;
+    //Set when the body was compiled by the ClosureCompiler instead of
+    //being walked by the Interpreter
+    private final ClosureCompiler.Evaluator compiledBody;
+
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isMethod) {
+        this(declaration, closure, null, isMethod);
+    }
+
+    LoxFunction(Stmt.Function declaration, Environment closure, ClosureCompiler.Evaluator compiledBody,
+                boolean isMethod) {
+        this(declaration, closure, compiledBody, isMethod, null);
+    }
 
-    LoxFunction(Stmt.Function declaration, Environment closure) {
+    private LoxFunction(Stmt.Function declaration, Environment closure,
+                        ClosureCompiler.Evaluator compiledBody, boolean isMethod, LoxInstance receiver) {
         this.declaration = declaration;
         this.closure = closure;
+        this.compiledBody = compiledBody;
+        this.isMethod = isMethod;
+        this.receiver = receiver;
     }
 
     LoxFunction bind (LoxInstance instance) {
-        Environment environment = new Environment();
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment);
+        return new LoxFunction(declaration, closure, compiledBody, isMethod, instance);
     }
 
     @Override
@@ -22,20 +38,130 @@ public class LoxFunction implements LoxCallable {
         return declaration.params.size();
     }
 
+    //Starts the environment of a call. Methods get their receiver in the
+    //first slot, which is the bound one unless another is given, for
+    //methods called without binding them. The caller defines the
+    //arguments next.
+    Environment frame(Interpreter interpreter, LoxInstance receiver) {
+        Environment frame = interpreter.newEnvironment(closure);
+        if (isMethod) frame.define(receiver != null ? receiver : this.receiver);
+        return frame;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        Environment frame = frame(interpreter, null);
+        for (Object argument : arguments) {
+            frame.define(argument);
+        }
+        return call(interpreter, frame);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return call(interpreter, frame(interpreter, null));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment frame = frame(interpreter, null);
+        frame.define(a);
+        return call(interpreter, frame);
+    }
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment frame = frame(interpreter, null);
+        frame.define(a);
+        frame.define(b);
+        return call(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment frame = frame(interpreter, null);
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        return call(interpreter, frame);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Environment frame = frame(interpreter, null);
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        frame.define(d);
+        return call(interpreter, frame);
+    }
+
+    //Runs the body in a frame made by frame(), with the arguments defined.
+    //
+    //Calls in tail position aren't made by the function returning them.
+    //It returns TAIL_CALL instead, and the call is made here, so a chain
+    //of tail calls runs in a loop rather than growing the Java stack.
+    //
+    //Functions the Memoizer found pure look the arguments up in their
+    //cache first. A tail call returns the caller's result, so the whole
+    //chain is cached under the caller's arguments, and a memoized
+    //function reached by a tail call runs without its cache.
+    //
+    //Calls long enough to pass its threshold make a Flight Recorder event.
+    Object call(Interpreter interpreter, Environment frame) {
+        Memoizer.Cache memo = declaration.memo;
+        Object key = null;
+        if (memo != null) {
+            key = Memoizer.key(frame, declaration.params.size());
+            Object result = memo.lookup(key);
+            if (result != Memoizer.MISS) {
+                interpreter.recycle(frame);
+                return result;
+            }
         }
 
+        Events.Call event = Events.startCall();
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) profiler.enter(declaration);
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            LoxFunction function = this;
+            while (true) {
+                Object result = function.run(interpreter, frame);
+                interpreter.recycle(frame);
+                if (result != Interpreter.TAIL_CALL) {
+                    if (memo != null) memo.store(key, result);
+                    return result;
+                }
+
+                function = interpreter.tailFunction;
+                frame = interpreter.tailFrame;
+                if (profiler != null) profiler.replace(function.declaration);
+            }
         }
-        catch (ControlException.Return ret) {
-            return ret.value;
+        finally {
+            if (profiler != null) profiler.exit();
+            if (event != null) Events.endCall(event, declaration);
+        }
+    }
+
+    private Object run(Interpreter interpreter, Environment frame) {
+        for (int slot : declaration.capturedSlots) {
+            frame.moveToCell(slot);
+        }
+
+        if (compiledBody == null && interpreter.tieredCompilation) {
+            CompiledFunction compiled = declaration.compiled;
+            if (compiled == null) compiled = JvmCompiler.countCall(declaration, isMethod);
+            if (compiled != null) return compiled.call(interpreter, frame);
+        }
+
+        if (compiledBody != null) {
+            return compiledBody.evaluate(frame);
         }
 
+        if (interpreter.executeBlock(declaration.body, frame) == Interpreter.RETURN) {
+            return interpreter.takeReturnValue();
+        }
         return null;
     }
 
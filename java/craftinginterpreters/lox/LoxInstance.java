@@ -1,29 +1,82 @@
 package craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+//Field values live in an array laid out by the instance's shape, which
+//is shared with every other instance that gained the same fields in the
+//same order
 public class LoxInstance {
     private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private Shape shape;
+    private Object[] values = new Object[4];
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.emptyShape;
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    //Fields shadow methods, so a name is only looked up as a method when
+    //the shape has no field for it
+    Object get(Token name, InlineCache.Property cache) {
+        int entry = cache.find(shape);
+        if (entry >= 0) {
+            int slot = cache.slot(entry);
+            if (slot >= 0) return values[slot];
+            return cache.method(entry).bind(this);
         }
 
+        int slot = shape.slotOf(name.lexeme);
+        if (slot >= 0) {
+            cache.add(shape, slot, null);
+            return values[slot];
+        }
+
+        return lookUpMethod(name, cache).bind(this);
+    }
+
+    //For calls of the form instance.name(...), which can pass the
+    //instance to the method instead of binding it. Returns null if the
+    //name is a field.
+    LoxFunction method(Token name, InlineCache.Property cache) {
+        int entry = cache.find(shape);
+        if (entry >= 0) return cache.method(entry);
+
+        if (shape.slotOf(name.lexeme) >= 0) return null;
+        return lookUpMethod(name, cache);
+    }
+
+    private LoxFunction lookUpMethod(Token name, InlineCache.Property cache) {
         LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        cache.add(shape, -1, method);
+        return method;
+    }
+
+    void set(Expr.Set site, Object value) {
+        InlineCache.Store cache = site.cache;
+        int entry = cache.find(shape);
+        if (entry >= 0) {
+            store(cache.slot(entry), cache.nextShape(entry), value);
+            return;
+        }
+
+        Shape before = shape;
+        int slot = shape.slotOf(site.name.lexeme);
+        Shape after = slot >= 0 ? shape : shape.withField(site.name.lexeme);
+        if (slot < 0) slot = shape.size();
 
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        cache.add(before, slot, after);
+        store(slot, after, value);
     }
 
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    private void store(int slot, Shape nextShape, Object value) {
+        if (slot == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[slot] = value;
+        shape = nextShape;
     }
 
     @Override
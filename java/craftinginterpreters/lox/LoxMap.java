@@ -0,0 +1,168 @@
+package craftinginterpreters.lox;
+
+import java.util.Set;
+
+//The map value. Entries live in flat arrays probed linearly from the
+//key's hash, so there is no entry object per key. Numbers are hashed
+//from their bits and strings by their characters, and each slot keeps
+//its key's hash so probing and growing never hash a key twice. Removal
+//shifts the following entries back instead of leaving tombstones.
+public class LoxMap {
+    private static final int MIN_CAPACITY = 8;
+
+    //Null marks an empty slot, which is why nil can't be a key
+    private Object[] keys = new Object[MIN_CAPACITY];
+    private Object[] values = new Object[MIN_CAPACITY];
+    private int[] hashes = new int[MIN_CAPACITY];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public Object get(Object key) {
+        key = checkKey(key);
+        int slot = find(key, hash(key));
+        return keys[slot] == null ? null : values[slot];
+    }
+
+    public void put(Object key, Object value) {
+        key = checkKey(key);
+        int hash = hash(key);
+        int slot = find(key, hash);
+        if (keys[slot] != null) {
+            values[slot] = value;
+            return;
+        }
+
+        //Kept at most two thirds full so probe runs stay short
+        if ((size + 1) * 3 > keys.length * 2) {
+            grow();
+            slot = find(key, hash);
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        hashes[slot] = hash;
+        size++;
+    }
+
+    //Returns the removed value, or nil if the key wasn't there
+    public Object remove(Object key) {
+        key = checkKey(key);
+        int hole = find(key, hash(key));
+        if (keys[hole] == null) return null;
+
+        Object value = values[hole];
+        int mask = keys.length - 1;
+        //Pull back every later entry in the run that can't be found
+        //past the hole, until the run ends
+        for (int slot = (hole + 1) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            int home = hashes[slot] & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                hashes[hole] = hashes[slot];
+                hole = slot;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = null;
+        size--;
+        return value;
+    }
+
+    public LoxArray keys() {
+        LoxArray array = new LoxArray(size);
+        for (Object key : keys) {
+            if (key != null) array.add(key);
+        }
+        return array;
+    }
+
+    //The slot holding the key, or the empty slot where it would go
+    private int find(Object key, int hash) {
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].equals(key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        keys = new Object[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = oldHashes[i] & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    //Strings are stored flat so a key doesn't hold on to a shared
+    //builder and compares as a plain String
+    private static Object checkKey(Object key) {
+        if (key == null) throw new NativeError("Map key can't be nil.");
+        if (key instanceof LoxString) return key.toString();
+        return key;
+    }
+
+    //Equal keys must hash alike, so numbers hash their bits the same way
+    //Double.equals compares them
+    private static int hash(Object key) {
+        int hash;
+        if (key instanceof Double) {
+            long bits = Double.doubleToLongBits((double) key);
+            hash = (int) (bits ^ (bits >>> 32));
+        }
+        else {
+            hash = key.hashCode();
+        }
+        //Spread the high bits down into the ones the mask keeps
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    public static LoxMap checkMap(Object map) {
+        if (!(map instanceof LoxMap)) throw new NativeError("Expected a map.");
+        return (LoxMap) map;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        appendTo(text, LoxArray.printing());
+        return text.toString();
+    }
+
+    //A map that contains itself is shown as {...} inside itself
+    void appendTo(StringBuilder text, Set<Object> printing) {
+        if (!printing.add(this)) {
+            text.append("{...}");
+            return;
+        }
+
+        text.append("{");
+        boolean first = true;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) continue;
+            if (!first) text.append(", ");
+            first = false;
+            LoxArray.appendValue(text, keys[i], printing);
+            text.append(": ");
+            LoxArray.appendValue(text, values[i], printing);
+        }
+        text.append("}");
+        printing.remove(this);
+    }
+}
@@ -0,0 +1,88 @@
+package craftinginterpreters.lox;
+
+//A string built by concatenation. Literals and short results are plain
+//Strings, longer results share a StringBuilder and only remember how
+//much of it is theirs. Appending to the string that owns the end of
+//the builder appends in place, so building a string up in a loop
+//doesn't copy it on every step. The characters are only turned into a
+//String, once, when the value is compared, printed or stringified.
+final class LoxString {
+    //Shorter results are cheaper to copy than to share a builder for
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder chars;
+    private final int length;
+    private String flat = null;
+
+    private LoxString(StringBuilder chars, int length) {
+        this.chars = chars;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof LoxString;
+    }
+
+    //Both operands must be strings
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+
+        if (left instanceof LoxString) {
+            LoxString string = (LoxString) left;
+            //Later strings sharing the builder only see their own prefix,
+            //so only the string ending where the builder does can append
+            if (string.length == string.chars.length()) {
+                append(string.chars, right);
+                return new LoxString(string.chars, length);
+            }
+        }
+        else if (length < MIN_LENGTH && right instanceof String) {
+            return (String) left + (String) right;
+        }
+
+        StringBuilder chars = new StringBuilder(Math.max(MIN_LENGTH, length * 2));
+        append(chars, left);
+        append(chars, right);
+        return new LoxString(chars, length);
+    }
+
+    static int compare(Object left, Object right) {
+        return left.toString().compareTo(right.toString());
+    }
+
+    private static int length(Object string) {
+        if (string instanceof LoxString) return ((LoxString) string).length;
+        return ((String) string).length();
+    }
+
+    private static void append(StringBuilder chars, Object string) {
+        if (string instanceof LoxString) {
+            LoxString other = (LoxString) string;
+            //Appending a builder to itself would read what it's writing
+            if (other.chars == chars) chars.append(other.toString());
+            else chars.append(other.chars, 0, other.length);
+        }
+        else {
+            chars.append((String) string);
+        }
+    }
+
+    //Equal to other strings, flat or not, with the same characters
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!isString(other)) return false;
+        return toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = chars.substring(0, length);
+        return flat;
+    }
+}
@@ -0,0 +1,393 @@
+package craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//Finds the top level functions whose result only depends on their
+//arguments and gives each a bounded cache of results, which
+//LoxFunction.call checks before running the body.
+//
+//A function is pure if it only reads and writes its own locals, never
+//prints, makes no objects, arrays, closures or classes, and only calls
+//other pure functions by name. A name only stands for a function if the
+//program declares it once and never assigns it. Each run of the REPL
+//adds to what's known, and a later line that redeclares or assigns a
+//name drops the caches of the functions that relied on it.
+class Memoizer implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    //What the cache returns for a call it hasn't seen
+    static final Object MISS = new Object();
+    //Stands in for a nil result, which the map can't tell from a miss
+    private static final Object NIL = new Object();
+    private static final List<Object> NO_ARGUMENTS = Collections.emptyList();
+
+    private final int capacity;
+    //Keyed by global slot, in declaration order for the report
+    private final Map<Integer, Analysis> functions = new LinkedHashMap<>();
+    private final Map<Integer, Integer> declarations = new HashMap<>();
+    private final Set<Integer> assigned = new HashSet<>();
+    //The function whose body is being walked, or null at the top level
+    private Analysis current = null;
+
+    private static class Analysis {
+        final Stmt.Function declaration;
+        boolean isPure = true;
+        //The global slots of the functions it calls
+        final Set<Integer> callees = new HashSet<>();
+
+        Analysis(Stmt.Function declaration) {
+            this.declaration = declaration;
+        }
+    }
+
+    //The results of one function, least recently used first. The
+    //counters cover the whole run.
+    static final class Cache {
+        final String name;
+        private final Map<Object, Object> results;
+        int hits = 0;
+        int misses = 0;
+
+        Cache(String name, int capacity) {
+            this.name = name;
+            results = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        Object lookup(Object key) {
+            Object result = results.get(key);
+            if (result == null) {
+                misses++;
+                return MISS;
+            }
+            hits++;
+            return result == NIL ? null : result;
+        }
+
+        void store(Object key, Object result) {
+            results.put(key, result == null ? NIL : result);
+        }
+    }
+
+    Memoizer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    //The arguments of a call, from the frame the caller defined them in,
+    //as a key that is equal for equal Lox values
+    static Object key(Environment frame, int arity) {
+        if (arity == 0) return NO_ARGUMENTS;
+        if (arity == 1) return flatten(frame.get(0));
+
+        Object[] arguments = new Object[arity];
+        for (int i = 0; i < arity; i++) {
+            arguments[i] = flatten(frame.get(i));
+        }
+        return Arrays.asList(arguments);
+    }
+
+    private static Object flatten(Object value) {
+        return value instanceof LoxString ? value.toString() : value;
+    }
+
+    void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            //Line counting wraps the statements that aren't declarations
+            //of functions or classes
+            if (statement instanceof Stmt.Counted) statement = ((Stmt.Counted) statement).statement;
+
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) statement;
+                declare(function.slot);
+                current = new Analysis(function);
+                Analysis previous = functions.put(function.slot, current);
+                if (previous != null) previous.declaration.memo = null;
+                walk(function.body);
+                current = null;
+            }
+            else if (statement instanceof Stmt.Var) {
+                declare(((Stmt.Var) statement).slot);
+                walk(statement);
+            }
+            else if (statement instanceof Stmt.Class) {
+                declare(((Stmt.Class) statement).slot);
+                walk(statement);
+            }
+            else {
+                walk(statement);
+            }
+        }
+
+        //Calling a function that isn't pure makes the caller impure too,
+        //until no more change
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Analysis analysis : functions.values()) {
+                if (analysis.isPure && !isPure(analysis)) {
+                    analysis.isPure = false;
+                    changed = true;
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Analysis> entry : functions.entrySet()) {
+            Stmt.Function declaration = entry.getValue().declaration;
+            if (entry.getValue().isPure && isStable(entry.getKey())) {
+                if (declaration.memo == null) declaration.memo = new Cache(declaration.name.lexeme, capacity);
+            }
+            else {
+                declaration.memo = null;
+            }
+        }
+    }
+
+    private boolean isPure(Analysis analysis) {
+        for (int callee : analysis.callees) {
+            if (!isStable(callee)) return false;
+            Analysis function = functions.get(callee);
+            if (function == null || !function.isPure) return false;
+        }
+        return true;
+    }
+
+    private boolean isStable(int slot) {
+        return declarations.getOrDefault(slot, 0) == 1 && !assigned.contains(slot);
+    }
+
+    private void declare(int slot) {
+        declarations.merge(slot, 1, Integer::sum);
+    }
+
+    private void impure() {
+        if (current != null) current.isPure = false;
+    }
+
+    void report() {
+        for (Analysis analysis : functions.values()) {
+            Cache memo = analysis.declaration.memo;
+            if (memo == null) continue;
+            System.err.println("[memo " + memo.name + "] " + memo.hits + " hit(s), " + memo.misses + " miss(es)");
+        }
+    }
+
+    private void walk(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            walk(statement);
+        }
+    }
+
+    private void walk(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void walk(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        walk(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        impure();
+        for (Stmt.Function method : stmt.methods) {
+            walk(method.body);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        walk(stmt.statement);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    //Top level functions are handled by analyze, so this is a closure
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        impure();
+        walk(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        walk(stmt.thenBranch);
+        if (stmt.elseBranch != null) walk(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        impure();
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        walk(stmt.body);
+        if (stmt.increment != null) walk(stmt.increment);
+        return null;
+    }
+
+    //A new array is a new mutable object on every call
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        impure();
+        for (Expr element : expr.elements) {
+            walk(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth < 0) assigned.add(expr.slot);
+        if (expr.depth != 0) impure();
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Variable && ((Expr.Variable) expr.callee).depth < 0) {
+            if (current != null) current.callees.add(((Expr.Variable) expr.callee).slot);
+        }
+        else {
+            impure();
+            walk(expr.callee);
+        }
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        impure();
+        walk(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        impure();
+        walk(expr.object);
+        walk(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        impure();
+        walk(expr.object);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+        impure();
+        walk(expr.object);
+        walk(expr.index);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        impure();
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        walk(expr.condition);
+        walk(expr.trueExpr);
+        walk(expr.falseExpr);
+        return null;
+    }
+
+    //Only the function's own locals; globals may change between calls
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth != 0) impure();
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+package craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+//A function built into the language. Every engine defines the ones in
+//ALL as globals, in order: the VM calls them as they are and the
+//Interpreter through a LoxCallable. Bodies throw NativeError for
+//arguments they can't handle.
+public final class Native {
+    public static final List<Native> ALL = Collections.unmodifiableList(Arrays.asList(
+            new Native("clock", 0, arguments -> (double)System.currentTimeMillis() / 1000.0),
+            new Native("len", 1, arguments -> LoxArray.length(arguments[0])),
+            new Native("push", 2, arguments -> {
+                LoxArray.push(arguments[0], arguments[1]);
+                return null;
+            }),
+            new Native("map", 0, arguments -> new LoxMap()),
+            new Native("get", 2, arguments -> LoxMap.checkMap(arguments[0]).get(arguments[1])),
+            new Native("put", 3, arguments -> {
+                LoxMap.checkMap(arguments[0]).put(arguments[1], arguments[2]);
+                return null;
+            }),
+            new Native("remove", 2, arguments -> LoxMap.checkMap(arguments[0]).remove(arguments[1])),
+            new Native("keys", 1, arguments -> LoxMap.checkMap(arguments[0]).keys())));
+
+    public final String name;
+    public final int arity;
+    private final Function<Object[], Object> body;
+
+    private Native(String name, int arity, Function<Object[], Object> body) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+    }
+
+    //The caller has checked the number of arguments
+    public Object call(Object[] arguments) {
+        return body.apply(arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
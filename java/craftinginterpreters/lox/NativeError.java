@@ -0,0 +1,9 @@
+package craftinginterpreters.lox;
+
+//Thrown by native functions given arguments they can't handle. The
+//engine calling the native reports it as a runtime error at the call.
+public class NativeError extends RuntimeException {
+    public NativeError(String message) {
+        super(message);
+    }
+}
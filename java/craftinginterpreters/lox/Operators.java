@@ -0,0 +1,230 @@
+package craftinginterpreters.lox;
+
+import java.util.function.DoubleBinaryOperator;
+
+//Self-specializing implementations of the Binary, Unary and Logical
+//operators. Each node starts out uninitialized and, the first time it
+//runs, rewrites itself to the version specialized for the operand types
+//it saw. If a specialized version later sees other types it rewrites
+//the node to the generic version, which does the full type dispatch,
+//and the node stays generic from then on.
+final class Operators {
+    interface BinaryOperation {
+        Object execute(Interpreter interpreter, Expr.Binary node, Object left, Object right);
+    }
+
+    interface UnaryOperation {
+        Object execute(Interpreter interpreter, Expr.Unary node, Object operand);
+    }
+
+    //Logical operators only evaluate their right operand when needed
+    interface LogicalOperation {
+        Object execute(Interpreter interpreter, Expr.Logical node, Object left);
+    }
+
+    private Operators() {}
+
+    static final BinaryOperation UNINITIALIZED_BINARY = (interpreter, node, left, right) -> {
+        node.operation = specializeBinary(node.operator.type, left, right);
+        return node.operation.execute(interpreter, node, left, right);
+    };
+
+    private static final BinaryOperation GENERIC_BINARY = (interpreter, node, left, right) ->
+            interpreter.executeBinary(node, left, right);
+
+    //Specializations for numbers. The Interpreter can also apply these
+    //to operands it evaluated without boxing them.
+    static final class Arithmetic implements BinaryOperation {
+        private final DoubleBinaryOperator operator;
+
+        private Arithmetic(DoubleBinaryOperator operator) {
+            this.operator = operator;
+        }
+
+        double apply(double left, double right) {
+            return operator.applyAsDouble(left, right);
+        }
+
+        @Override
+        public Object execute(Interpreter interpreter, Expr.Binary node, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return apply((double) left, (double) right);
+            return generalize(interpreter, node, left, right);
+        }
+    }
+
+    interface DoubleComparison {
+        boolean test(double left, double right);
+    }
+
+    static final class Comparison implements BinaryOperation {
+        private final DoubleComparison comparison;
+
+        private Comparison(DoubleComparison comparison) {
+            this.comparison = comparison;
+        }
+
+        boolean apply(double left, double right) {
+            return comparison.test(left, right);
+        }
+
+        @Override
+        public Object execute(Interpreter interpreter, Expr.Binary node, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return apply((double) left, (double) right);
+            return generalize(interpreter, node, left, right);
+        }
+    }
+
+    private static final Arithmetic NUMBER_ADD = new Arithmetic((left, right) -> left + right);
+    private static final Arithmetic NUMBER_SUBTRACT = new Arithmetic((left, right) -> left - right);
+    private static final Arithmetic NUMBER_MULTIPLY = new Arithmetic((left, right) -> left * right);
+    private static final Arithmetic NUMBER_DIVIDE = new Arithmetic((left, right) -> left / right);
+    private static final Comparison NUMBER_GREATER = new Comparison((left, right) -> left > right);
+    private static final Comparison NUMBER_GREATER_EQUAL = new Comparison((left, right) -> left >= right);
+    private static final Comparison NUMBER_LESS = new Comparison((left, right) -> left < right);
+    private static final Comparison NUMBER_LESS_EQUAL = new Comparison((left, right) -> left <= right);
+
+    private static final BinaryOperation STRING_ADD = (interpreter, node, left, right) -> {
+        if (LoxString.isString(left) && LoxString.isString(right)) return LoxString.concat(left, right);
+        return generalize(interpreter, node, left, right);
+    };
+
+    private static final BinaryOperation STRING_GREATER = (interpreter, node, left, right) -> {
+        if (LoxString.isString(left) && LoxString.isString(right)) return LoxString.compare(left, right) > 0;
+        return generalize(interpreter, node, left, right);
+    };
+
+    private static final BinaryOperation STRING_GREATER_EQUAL = (interpreter, node, left, right) -> {
+        if (LoxString.isString(left) && LoxString.isString(right)) return LoxString.compare(left, right) >= 0;
+        return generalize(interpreter, node, left, right);
+    };
+
+    private static final BinaryOperation STRING_LESS = (interpreter, node, left, right) -> {
+        if (LoxString.isString(left) && LoxString.isString(right)) return LoxString.compare(left, right) < 0;
+        return generalize(interpreter, node, left, right);
+    };
+
+    private static final BinaryOperation STRING_LESS_EQUAL = (interpreter, node, left, right) -> {
+        if (LoxString.isString(left) && LoxString.isString(right)) return LoxString.compare(left, right) <= 0;
+        return generalize(interpreter, node, left, right);
+    };
+
+    //Equality works on any pair of values, so it never needs to generalize
+    private static final BinaryOperation EQUAL = (interpreter, node, left, right) ->
+            interpreter.isEqual(left, right);
+
+    private static final BinaryOperation NOT_EQUAL = (interpreter, node, left, right) ->
+            !interpreter.isEqual(left, right);
+
+    private static BinaryOperation specializeBinary(TokenType operator, Object left, Object right) {
+        if (operator == TokenType.EQUAL_EQUAL) return EQUAL;
+        if (operator == TokenType.BANG_EQUAL) return NOT_EQUAL;
+
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS: return NUMBER_ADD;
+                case MINUS: return NUMBER_SUBTRACT;
+                case STAR: return NUMBER_MULTIPLY;
+                case SLASH: return NUMBER_DIVIDE;
+                case GREATER: return NUMBER_GREATER;
+                case GREATER_EQUAL: return NUMBER_GREATER_EQUAL;
+                case LESS: return NUMBER_LESS;
+                case LESS_EQUAL: return NUMBER_LESS_EQUAL;
+            }
+        }
+        else if (LoxString.isString(left) && LoxString.isString(right)) {
+            switch (operator) {
+                case PLUS: return STRING_ADD;
+                case GREATER: return STRING_GREATER;
+                case GREATER_EQUAL: return STRING_GREATER_EQUAL;
+                case LESS: return STRING_LESS;
+                case LESS_EQUAL: return STRING_LESS_EQUAL;
+            }
+        }
+
+        return GENERIC_BINARY;
+    }
+
+    //Whether the node has only ever seen numbers, so its operands are
+    //worth evaluating unboxed
+    static boolean sawOnlyNumbers(Expr.Binary node) {
+        return node.operation instanceof Arithmetic || node.operation instanceof Comparison;
+    }
+
+    private static Object generalize(Interpreter interpreter, Expr.Binary node, Object left, Object right) {
+        node.operation = GENERIC_BINARY;
+        return GENERIC_BINARY.execute(interpreter, node, left, right);
+    }
+
+    static final UnaryOperation UNINITIALIZED_UNARY = (interpreter, node, operand) -> {
+        node.operation = specializeUnary(node.operator.type, operand);
+        return node.operation.execute(interpreter, node, operand);
+    };
+
+    private static final UnaryOperation GENERIC_UNARY = (interpreter, node, operand) ->
+            interpreter.executeUnary(node, operand);
+
+    private static final UnaryOperation NUMBER_NEGATE = (interpreter, node, operand) -> {
+        if (operand instanceof Double) return -(double) operand;
+        return generalize(interpreter, node, operand);
+    };
+
+    private static final UnaryOperation BOOLEAN_NOT = (interpreter, node, operand) -> {
+        if (operand instanceof Boolean) return !(boolean) operand;
+        return generalize(interpreter, node, operand);
+    };
+
+    private static UnaryOperation specializeUnary(TokenType operator, Object operand) {
+        if (operator == TokenType.MINUS && operand instanceof Double) return NUMBER_NEGATE;
+        if (operator == TokenType.BANG && operand instanceof Boolean) return BOOLEAN_NOT;
+        return GENERIC_UNARY;
+    }
+
+    static boolean sawOnlyNumbers(Expr.Unary node) {
+        return node.operation == NUMBER_NEGATE;
+    }
+
+    private static Object generalize(Interpreter interpreter, Expr.Unary node, Object operand) {
+        node.operation = GENERIC_UNARY;
+        return GENERIC_UNARY.execute(interpreter, node, operand);
+    }
+
+    static final LogicalOperation UNINITIALIZED_LOGICAL = (interpreter, node, left) -> {
+        node.operation = specializeLogical(node.operator.type, left);
+        return node.operation.execute(interpreter, node, left);
+    };
+
+    private static final LogicalOperation GENERIC_OR = (interpreter, node, left) -> {
+        if (interpreter.isTruthy(left)) return left;
+        return interpreter.evaluate(node.right);
+    };
+
+    private static final LogicalOperation GENERIC_AND = (interpreter, node, left) -> {
+        if (!interpreter.isTruthy(left)) return left;
+        return interpreter.evaluate(node.right);
+    };
+
+    private static final LogicalOperation BOOLEAN_OR = (interpreter, node, left) -> {
+        if (!(left instanceof Boolean)) {
+            node.operation = GENERIC_OR;
+            return GENERIC_OR.execute(interpreter, node, left);
+        }
+        if ((boolean) left) return left;
+        return interpreter.evaluate(node.right);
+    };
+
+    private static final LogicalOperation BOOLEAN_AND = (interpreter, node, left) -> {
+        if (!(left instanceof Boolean)) {
+            node.operation = GENERIC_AND;
+            return GENERIC_AND.execute(interpreter, node, left);
+        }
+        if (!(boolean) left) return left;
+        return interpreter.evaluate(node.right);
+    };
+
+    private static LogicalOperation specializeLogical(TokenType operator, Object left) {
+        if (operator == TokenType.OR) {
+            return left instanceof Boolean ? BOOLEAN_OR : GENERIC_OR;
+        }
+        return left instanceof Boolean ? BOOLEAN_AND : GENERIC_AND;
+    }
+}
@@ -0,0 +1,41 @@
+package craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Runs the enabled optimization passes over the resolved program, in a
+//fixed order so each pass sees what the previous ones simplified.
+//Every pass is optional, and each run can report how many rewrites
+//each pass made.
+class Optimizer {
+    static final List<String> PASSES = Arrays.asList("fold", "branches", "unreachable");
+
+    private final Interpreter interpreter;
+    private final List<String> enabled;
+    private final boolean report;
+
+    Optimizer(Interpreter interpreter, List<String> enabled, boolean report) {
+        this.interpreter = interpreter;
+        this.enabled = enabled;
+        this.report = report;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        for (AstRewriter pass : createPasses()) {
+            statements = pass.rewrite(statements);
+            if (report) {
+                System.err.println("[pass " + pass.name() + "] " + pass.changes + " change(s)");
+            }
+        }
+        return statements;
+    }
+
+    private List<AstRewriter> createPasses() {
+        List<AstRewriter> passes = new ArrayList<>();
+        if (enabled.contains("fold")) passes.add(new ConstantFolder(interpreter));
+        if (enabled.contains("branches")) passes.add(new BranchEliminator(interpreter));
+        if (enabled.contains("unreachable")) passes.add(new UnreachableCodeEliminator());
+        return passes;
+    }
+}
@@ -0,0 +1,135 @@
+package craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+//The OutputSink jlox prints through. Lines are collected in a buffer
+//rather than going through System.out one println at a time, and the
+//Flush policy says when the buffer is written out.
+public class Output implements OutputSink {
+    public enum Flush {
+        //Only when the program ends. The buffer grows to hold everything.
+        EXIT,
+        //After every line, for someone reading the output as it's produced
+        LINE,
+        //Whenever the buffer fills up, and when the program ends
+        SIZE
+    }
+
+    private static final String NEWLINE = System.lineSeparator();
+    //Room for the digits and sign of any long
+    private static final int MAX_LONG_LENGTH = 20;
+
+    private final Writer out;
+    private final Flush flush;
+    private char[] buffer;
+    private int length = 0;
+
+    public Output(OutputStream out, int bufferSize, Flush flush) {
+        this.out = new OutputStreamWriter(out, Charset.defaultCharset());
+        this.buffer = new char[Math.max(bufferSize, MAX_LONG_LENGTH + NEWLINE.length())];
+        this.flush = flush;
+    }
+
+    @Override
+    public void println(String text) {
+        write(text);
+        endLine();
+    }
+
+    //Whole numbers are written digit by digit without making a String
+    @Override
+    public void println(double number) {
+        if (!isPlainWhole(number)) {
+            println(format(number));
+            return;
+        }
+
+        if (buffer.length - length < MAX_LONG_LENGTH) makeRoom();
+        long value = (long) number;
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+        endLine();
+    }
+
+    //Numbers print like Java doubles, without the ".0" of whole ones
+    public static String format(double number) {
+        if (isPlainWhole(number)) return Long.toString((long) number);
+
+        String text = Double.toString(number);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+
+    //Whole numbers Double.toString writes without an exponent. Negative
+    //zero is left to it too, to keep its sign.
+    private static boolean isPlainWhole(double number) {
+        return number == (long) number && Math.abs(number) < 1e7
+                && (number != 0 || 1 / number > 0);
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void endLine() {
+        write(NEWLINE);
+        if (flush == Flush.LINE) flush();
+    }
+
+    private void write(String text) {
+        int offset = 0;
+        while (offset < text.length()) {
+            if (length == buffer.length) makeRoom();
+            int count = Math.min(buffer.length - length, text.length() - offset);
+            text.getChars(offset, offset + count, buffer, length);
+            length += count;
+            offset += count;
+        }
+    }
+
+    private void makeRoom() {
+        if (flush == Flush.EXIT) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        else {
+            drain();
+        }
+    }
+
+    private void drain() {
+        try {
+            out.write(buffer, 0, length);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        length = 0;
+    }
+}
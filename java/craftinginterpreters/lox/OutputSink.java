@@ -0,0 +1,13 @@
+package craftinginterpreters.lox;
+
+//Where print statements write. Each engine is handed one, so embedders
+//can collect a program's output instead of sending it to stdout.
+public interface OutputSink {
+    void println(String text);
+
+    //Numbers are passed unboxed so sinks can format them without a String
+    void println(double number);
+
+    //Writes out anything held back
+    void flush();
+}
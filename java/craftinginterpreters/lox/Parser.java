@@ -28,9 +28,10 @@ class Parser {
 
     private Stmt declaration() {
         try {
-            if (match(CLASS)) return classDeclaration();
-            if (match(FUN)) return function("function");
-            if (match(VAR)) return varDeclaration();
+            Token start = peek();
+            if (match(CLASS)) return startsAt(classDeclaration(), start);
+            if (match(FUN)) return startsAt(function("function"), start);
+            if (match(VAR)) return startsAt(varDeclaration(), start);
 
             return statement();
         }
@@ -86,16 +87,23 @@ class Parser {
     }
 
     private Stmt statement() {
-        if (match(BREAK)) return breakStatement();
-        if (match(CONTINUE)) return continueStatement();
-        if (match(WHILE)) return whileStatement();
-        if (match(FOR)) return forStatement();
-        if (match(IF)) return ifStatement();
-        if (match(PRINT)) return printStatement();
-        if (match(RETURN)) return returnStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(blockStatement());
+        Token start = peek();
+        if (match(BREAK)) return startsAt(breakStatement(), start);
+        if (match(CONTINUE)) return startsAt(continueStatement(), start);
+        if (match(WHILE)) return startsAt(whileStatement(), start);
+        if (match(FOR)) return startsAt(forStatement(), start);
+        if (match(IF)) return startsAt(ifStatement(), start);
+        if (match(PRINT)) return startsAt(printStatement(), start);
+        if (match(RETURN)) return startsAt(returnStatement(), start);
+        if (match(LEFT_BRACE)) return startsAt(new Stmt.Block(blockStatement()), start);
 
-        return expressionStatement();
+        return startsAt(expressionStatement(), start);
+    }
+
+    //Statements remember the line they start on, for line counting
+    private Stmt startsAt(Stmt stmt, Token start) {
+        stmt.line = start.line;
+        return stmt;
     }
 
     private Stmt breakStatement() {
@@ -128,6 +136,7 @@ class Parser {
     private Stmt forStatement() {
         try {
             loopDepth++;
+            Token keyword = previous();
             consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
             Stmt initializer;
@@ -153,14 +162,13 @@ class Parser {
 
             Stmt body = statement();
 
-            if (increment != null) {
-                body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-            }
-
+            //The increment is run by the loop itself after every iteration,
+            //including ones cut short by 'continue'
             if (condition == null) condition = new Expr.Literal(true);
-            body = new Stmt.While(condition, body, increment);
+            body = startsAt(new Stmt.While(condition, body, increment), keyword);
 
             if (initializer != null) {
+                startsAt(initializer, keyword);
                 body = new Stmt.Block(Arrays.asList(initializer, body));
             }
 
@@ -237,6 +245,10 @@ class Parser {
                 Expr.Get get = (Expr.Get)expr;
                 return new Expr.Set(get.object, get.name, value);
             }
+            else if (expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index)expr;
+                return new Expr.SetIndex(index.object, index.bracket, index.index, value);
+            }
 
             error(equals, "Invalid assignment target.");
         }
@@ -379,6 +391,11 @@ class Parser {
                 Token name = consume(IDENTIFIER, "Expect property name after '.'.");
                 expr = new Expr.Get(expr, name);
             }
+            else if (match(LEFT_BRACKET)) {
+                Expr index = expression();
+                Token bracket = consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expr.Index(expr, bracket, index);
+            }
             else {
                 break;
             }
@@ -407,6 +424,18 @@ class Parser {
             return new Expr.Grouping(expr);
         }
 
+        if (match(LEFT_BRACKET)) {
+            Token bracket = previous();
+            List<Expr> elements = new ArrayList<>();
+            if (!check(RIGHT_BRACKET)) {
+                do {
+                    elements.add(expression());
+                } while (match(COMMA));
+            }
+            consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+            return new Expr.Array(bracket, elements);
+        }
+
         throw error(peek(), "Expect expression.");
     }
 
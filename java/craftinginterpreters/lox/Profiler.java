@@ -0,0 +1,164 @@
+package craftinginterpreters.lox;
+
+import craftinginterpreters.lox.vm.FunctionProto;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+//Samples which Lox functions are running. Each engine pushes the
+//function it calls onto a stack of its own here and pops it when the
+//call ends, which is all the running program pays. A background thread
+//reads the stack at a fixed interval and counts each distinct stack it
+//sees. The thread may catch the stack mid-update, which only shifts a
+//sample to a neighbouring stack.
+//
+//At the end the counts are written in the collapsed-stack format
+//flamegraph tools read, one "<script>;outer;inner count" line per
+//stack, and each function's self and total time goes to stderr.
+//Functions are named by their declaration and the line it's on.
+public class Profiler {
+    private static final long INTERVAL_NANOS = 1_000_000;
+    private static final String ROOT = "<script>";
+
+    private final String path;
+    private final Thread sampler = new Thread(this::sample, "lox-profiler");
+    private volatile boolean running = true;
+    private long startTime;
+    private long endTime;
+
+    //A Stmt.Function or FunctionProto for each call in progress. Only
+    //the running program writes them; the depth is published last.
+    private volatile Object[] frames = new Object[64];
+    private volatile int depth = 0;
+
+    //Only touched by the sampler until it has stopped
+    private final Map<String, Integer> stacks = new HashMap<>();
+    private final Map<Object, String> labels = new IdentityHashMap<>();
+    private int samples = 0;
+
+    Profiler(String path) {
+        this.path = path;
+        sampler.setDaemon(true);
+    }
+
+    void start() {
+        startTime = System.nanoTime();
+        sampler.start();
+    }
+
+    public void enter(Object function) {
+        Object[] frames = this.frames;
+        int depth = this.depth;
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+            this.frames = frames;
+        }
+        frames[depth] = function;
+        this.depth = depth + 1;
+    }
+
+    public void exit() {
+        depth--;
+    }
+
+    //A tail call runs the callee in place of the caller
+    public void replace(Object function) {
+        frames[depth - 1] = function;
+    }
+
+    //For the VM, whose frames are dropped all at once by a runtime error
+    public void reset() {
+        depth = 0;
+    }
+
+    private void sample() {
+        while (running) {
+            LockSupport.parkNanos(INTERVAL_NANOS);
+
+            Object[] frames = this.frames;
+            int depth = Math.min(this.depth, frames.length);
+            StringBuilder stack = new StringBuilder(ROOT);
+            for (int i = 0; i < depth; i++) {
+                Object frame = frames[i];
+                if (frame != null) stack.append(';').append(label(frame));
+            }
+            stacks.merge(stack.toString(), 1, Integer::sum);
+            samples++;
+        }
+    }
+
+    private String label(Object frame) {
+        String label = labels.get(frame);
+        if (label == null) {
+            if (frame instanceof Stmt.Function) {
+                Token name = ((Stmt.Function) frame).name;
+                label = name.lexeme + ":" + name.line;
+            }
+            else {
+                FunctionProto function = (FunctionProto) frame;
+                label = function.name + ":" + function.line;
+            }
+            labels.put(frame, label);
+        }
+        return label;
+    }
+
+    void stop() {
+        running = false;
+        try {
+            sampler.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        endTime = System.nanoTime();
+    }
+
+    void report() throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path), Charset.defaultCharset()))) {
+            for (Map.Entry<String, Integer> stack : stacks.entrySet()) {
+                out.println(stack.getKey() + " " + stack.getValue());
+            }
+        }
+
+        Map<String, Integer> self = new HashMap<>();
+        Map<String, Integer> total = new HashMap<>();
+        for (Map.Entry<String, Integer> stack : stacks.entrySet()) {
+            String[] functions = stack.getKey().split(";");
+            int count = stack.getValue();
+            self.merge(functions[functions.length - 1], count, Integer::sum);
+            //Recursive functions appear more than once but only count once
+            Set<String> seen = new HashSet<>(Arrays.asList(functions));
+            for (String function : seen) {
+                total.merge(function, count, Integer::sum);
+            }
+        }
+
+        List<String> functions = new ArrayList<>(total.keySet());
+        functions.sort((a, b) -> self.getOrDefault(b, 0) - self.getOrDefault(a, 0));
+
+        //Samples are spread over the run, so each stands for an equal share of it
+        double millisPerSample = samples == 0 ? 0 : (endTime - startTime) / 1e6 / samples;
+        System.err.println("[profile] " + samples + " samples, stacks written to " + path);
+        System.err.println(String.format("%10s %7s %10s %7s  %s", "self ms", "self%", "total ms", "total%", "function"));
+        for (String function : functions) {
+            int selfSamples = self.getOrDefault(function, 0);
+            int totalSamples = total.get(function);
+            System.err.println(String.format("%10.1f %6.1f%% %10.1f %6.1f%%  %s",
+                    selfSamples * millisPerSample, 100.0 * selfSamples / samples,
+                    totalSamples * millisPerSample, 100.0 * totalSamples / samples, function));
+        }
+    }
+}
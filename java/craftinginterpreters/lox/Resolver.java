@@ -1,21 +1,25 @@
 package craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
-//Resolves variables by finding the number of scopes that must be
-//traversed to access the proper version of that variable
+//Resolves variables by finding the number of environments that must be
+//traversed to access the proper version of that variable, and the
+//slot it occupies within that environment. The result is stored on the
+//Variable, Assign and This nodes themselves. Globals get the slot their
+//name is interned into in the global environment.
+//
+//It also finds the locals inner functions capture. Only those are kept
+//in cells, and a closure is made of just the cells it uses.
 public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunctionType = FunctionType.NONE;
     private ClassType currentClassType = ClassType.NONE;
-
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    private FunctionScope currentFunction = null;
+    private final Environment globals;
 
     private enum FunctionType {
         NONE,
@@ -28,6 +32,70 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         CLASS
     }
 
+    private static class Local {
+        final int slot;
+        boolean defined = false;
+        //Set once an inner function uses the variable, which then has to
+        //live in a Cell
+        boolean captured = false;
+        //The declaration and the reads and writes from the variable's own
+        //function, which are told about the Cell when the scope ends
+        final List<Object> uses = new ArrayList<>();
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    //Slots are handed out in declaration order, so redeclaring a name
+    //gets a fresh slot rather than reusing the shadowed one.
+    //
+    //Only functions and blocks outside of any function get an
+    //environment. Other blocks keep their locals in the environment of
+    //the scope enclosing them, in the slots after its own, which sibling
+    //blocks then reuse.
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+        //Including shadowed ones, which are no longer in locals
+        final List<Local> declared = new ArrayList<>();
+        final boolean hasEnvironment;
+        int nextSlot;
+
+        Scope(Scope enclosing) {
+            hasEnvironment = enclosing == null;
+            nextSlot = enclosing == null ? 0 : enclosing.nextSlot;
+        }
+
+        Local declare(String name) {
+            Local local = new Local(nextSlot++);
+            locals.put(name, local);
+            declared.add(local);
+            return local;
+        }
+    }
+
+    //A function being resolved. Variables it uses from enclosing
+    //functions become its upvalues: the cells its closure is made of when
+    //the declaration runs, each found at a depth and slot from the
+    //environment the function is declared in.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        //Index of the function's own scope in scopes
+        final int scope;
+        final List<Local> upvalues = new ArrayList<>();
+        final List<Integer> depths = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+
+        FunctionScope(FunctionScope enclosing, int scope) {
+            this.enclosing = enclosing;
+            this.scope = scope;
+        }
+    }
+
+    Resolver(Environment globals) {
+        this.globals = globals;
+    }
+
     void resolve(List<Stmt> statements) {
         for (Stmt statement:statements) {
             resolve(statement);
@@ -46,48 +114,176 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         FunctionType enclosingFunctionType = currentFunctionType;
         currentFunctionType = type;
 
-        beginScope();
+        beginScope(true);
+        FunctionScope enclosingFunction = currentFunction;
+        currentFunction = new FunctionScope(enclosingFunction, scopes.size() - 1);
+
+        //A method's receiver is passed like a hidden first parameter
+        if (type == FunctionType.METHOD) {
+            scopes.peek().declare("this").defined = true;
+        }
         for (Token param: function.params) {
             declare(param);
             define(param);
         }
+        int parameters = scopes.peek().nextSlot;
         resolve(function.body);
+
+        //Captured parameters are moved into cells when the call starts
+        List<Integer> captured = new ArrayList<>();
+        for (Local local : scopes.peek().declared) {
+            if (local.captured && local.slot < parameters) captured.add(local.slot);
+        }
+        function.capturedSlots = toArray(captured);
+        function.upvalueDepths = toArray(currentFunction.depths);
+        function.upvalueSlots = toArray(currentFunction.slots);
+
         endScope();
+        currentFunction = enclosingFunction;
         currentFunctionType = enclosingFunctionType;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private void beginScope(boolean hasEnvironment) {
+        scopes.push(new Scope(hasEnvironment || scopes.isEmpty() ? null : scopes.peek()));
+    }
+
+    //The number of environments between the scopes at the two indexes
+    private int distance(int from, int to) {
+        int distance = 0;
+        for (int i = from; i > to; i--) {
+            if (scopes.get(i).hasEnvironment) distance++;
+        }
+        return distance;
     }
 
     private void endScope() {
-        scopes.pop();
+        for (Local local : scopes.pop().declared) {
+            if (!local.captured) continue;
+
+            for (Object use : local.uses) {
+                if (use instanceof Expr.Variable) ((Expr.Variable) use).inCell = true;
+                else if (use instanceof Expr.Assign) ((Expr.Assign) use).inCell = true;
+                else if (use instanceof Expr.This) ((Expr.This) use).inCell = true;
+                else if (use instanceof Stmt.Var) ((Stmt.Var) use).isCaptured = true;
+                else if (use instanceof Stmt.Function) ((Stmt.Function) use).isCaptured = true;
+                else if (use instanceof Stmt.Class) ((Stmt.Class) use).isCaptured = true;
+            }
+        }
     }
 
-    private void declare(Token name) {
-        if(scopes.isEmpty()) return;
+    //Returns null for globals
+    private Local declare(Token name) {
+        if(scopes.isEmpty()) return null;
 
-        Map<String, Boolean> scope = scopes.peek();
-        scope.put(name.lexeme, false);
+        return scopes.peek().declare(name.lexeme);
+    }
+
+    //Returns the slot of the local or global declared
+    private int declare(Token name, Stmt declaration) {
+        Local local = declare(name);
+        if (local == null) return globals.intern(name.lexeme);
+
+        local.uses.add(declaration);
+        return local.slot;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme).defined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    //Returns -1 for names not found in any scope, which are globals
+    private int resolveScope(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            if (scopes.get(i).locals.containsKey(name.lexeme)) return i;
+        }
+
+        return -1;
+    }
+
+    //Fills in the depth, slot and inCell fields of a Variable, Assign or
+    //This node. Variables of enclosing functions are read from the
+    //function's closure, one environment past its own scope.
+    private void resolveLocal(Expr expr, Token name) {
+        int depth = -1;
+        int slot;
+        boolean inCell = false;
+
+        int scope = resolveScope(name);
+        if (scope < 0) {
+            slot = globals.intern(name.lexeme);
+        }
+        else {
+            Local local = scopes.get(scope).locals.get(name.lexeme);
+            if (currentFunction == null || scope >= currentFunction.scope) {
+                depth = distance(scopes.size() - 1, scope);
+                slot = local.slot;
+                local.uses.add(expr);
             }
+            else {
+                depth = distance(scopes.size() - 1, currentFunction.scope) + 1;
+                slot = upvalue(currentFunction, scope, local);
+                inCell = true;
+            }
+        }
+
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            variable.depth = depth;
+            variable.slot = slot;
+            variable.inCell = inCell;
+        }
+        else if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            assign.depth = depth;
+            assign.slot = slot;
+            assign.inCell = inCell;
+        }
+        else {
+            Expr.This keyword = (Expr.This) expr;
+            keyword.depth = depth;
+            keyword.slot = slot;
+            keyword.inCell = inCell;
+        }
+    }
+
+    //Returns the index of the local in the function's upvalues, adding
+    //it, and to the enclosing functions' upvalues as needed, if it isn't
+    //there yet
+    private int upvalue(FunctionScope function, int scope, Local local) {
+        int index = function.upvalues.indexOf(local);
+        if (index >= 0) return index;
+
+        //The scope the function is declared in
+        int site = function.scope - 1;
+        FunctionScope enclosing = function.enclosing;
+        if (enclosing == null || scope >= enclosing.scope) {
+            local.captured = true;
+            function.depths.add(distance(site, scope));
+            function.slots.add(local.slot);
+        }
+        else {
+            int slot = upvalue(enclosing, scope, local);
+            function.depths.add(distance(site, enclosing.scope) + 1);
+            function.slots.add(slot);
         }
+
+        function.upvalues.add(local);
+        return function.upvalues.size() - 1;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        stmt.hasEnvironment = scopes.isEmpty();
+        beginScope(false);
         resolve(stmt.statements);
         endScope();
         return null;
@@ -98,25 +294,21 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         ClassType enclosingClass = ClassType.NONE;
         currentClassType = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             resolveFunction(method, declaration);
         }
 
-        endScope();
         currentClassType = enclosingClass;
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -125,7 +317,7 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -135,8 +327,11 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if(!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().locals.get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                Lox.error(expr.name, "Can't read local variable in its own initializer.");
+            }
         }
 
         resolveLocal(expr, expr.name);
@@ -160,6 +355,12 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+        resolve(stmt.statement);
+        return null;
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         resolve(stmt.expression);
@@ -187,6 +388,7 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         }
 
         if(stmt.value != null) resolve(stmt.value);
+        stmt.isTailCall = stmt.value instanceof Expr.Call;
         return null;
     }
 
@@ -194,6 +396,15 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
         resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for (Expr element : expr.elements) {
+            resolve(element);
+        }
         return null;
     }
 
@@ -227,6 +438,13 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
         return null;
@@ -246,6 +464,14 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        resolve(expr.value);
+        return null;
+    }
+
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClassType == ClassType.NONE){
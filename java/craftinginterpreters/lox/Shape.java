@@ -0,0 +1,43 @@
+package craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+//The layout shared by every instance that gained the same fields in the
+//same order. A shape maps field names to indexes in the instance's
+//value array, and adding a field moves an instance to the child shape
+//for that name, which is created once and then shared. Each class has
+//its own root, so a shape also tells which class an instance belongs to.
+final class Shape {
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        this(new HashMap<>());
+    }
+
+    private Shape(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    //Returns -1 if no instance of this shape has the field
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, slots.size());
+            next = new Shape(nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
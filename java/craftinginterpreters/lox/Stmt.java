@@ -8,6 +8,7 @@ abstract class Stmt {
 		R visitContinueStmt(Continue stmt);
 		R visitBlockStmt(Block stmt);
 		R visitClassStmt(Class stmt);
+		R visitCountedStmt(Counted stmt);
 		R visitExpressionStmt(Expression stmt);
 		R visitFunctionStmt(Function stmt);
 		R visitIfStmt(If stmt);
@@ -17,6 +18,8 @@ abstract class Stmt {
 		R visitWhileStmt(While stmt);
 	}
 
+	int line;
+
 	abstract <R> R accept(Visitor<R> visitor);
 
 	static class Break extends Stmt {
@@ -41,6 +44,7 @@ abstract class Stmt {
 	}
 	static class Block extends Stmt {
 		final List<Stmt> statements;
+		boolean hasEnvironment;
 
 		public Block(List<Stmt> statements) {
 			this.statements = statements;
@@ -54,6 +58,8 @@ abstract class Stmt {
 	static class Class extends Stmt {
 		final Token name;
 		final List<Stmt.Function> methods;
+		boolean isCaptured;
+		int slot;
 
 		public Class(Token name, List<Stmt.Function> methods) {
 			this.name = name;
@@ -65,6 +71,20 @@ abstract class Stmt {
 			return visitor.visitClassStmt(this);
 		}
 	}
+	static class Counted extends Stmt {
+		final Stmt statement;
+		long count;
+		LineCounter.Timer timer;
+
+		public Counted(Stmt statement) {
+			this.statement = statement;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitCountedStmt(this);
+		}
+	}
 	static class Expression extends Stmt {
 		final Expr expression;
 
@@ -81,6 +101,15 @@ abstract class Stmt {
 		final Token name;
 		final List<Token> params;
 		final List<Stmt> body;
+		int calls;
+		int deoptimizations;
+		CompiledFunction compiled;
+		boolean isCaptured;
+		int slot;
+		int[] capturedSlots = new int[0];
+		int[] upvalueDepths = new int[0];
+		int[] upvalueSlots = new int[0];
+		Memoizer.Cache memo;
 
 		public Function(Token name, List<Token> params, List<Stmt> body) {
 			this.name = name;
@@ -124,6 +153,7 @@ abstract class Stmt {
 	static class Return extends Stmt {
 		final Token keyword;
 		final Expr value;
+		boolean isTailCall;
 
 		public Return(Token keyword, Expr value) {
 			this.keyword = keyword;
@@ -138,6 +168,8 @@ abstract class Stmt {
 	static class Var extends Stmt {
 		final Token name;
 		final Expr initializer;
+		boolean isCaptured;
+		int slot;
 
 		public Var(Token name, Expr initializer) {
 			this.name = name;
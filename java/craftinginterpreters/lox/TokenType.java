@@ -2,7 +2,7 @@ package craftinginterpreters.lox;
 
 public enum TokenType {
     // Single-character tokens.
-    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COMMA,
+    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, LEFT_BRACKET, RIGHT_BRACKET, COMMA,
     DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR, QUESTION, COLON,
 
     // One or two character tokens.
@@ -0,0 +1,40 @@
+package craftinginterpreters.lox;
+
+import java.util.List;
+
+//Removes the statements in a block that follow one that always jumps
+//away, like a return, break or continue, or an if statement whose
+//branches all do.
+class UnreachableCodeEliminator extends AstRewriter {
+    @Override
+    String name() {
+        return "unreachable";
+    }
+
+    @Override
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = super.rewrite(statements);
+        for (int i = 0; i < rewritten.size() - 1; i++) {
+            if (alwaysJumps(rewritten.get(i))) {
+                changes += rewritten.size() - i - 1;
+                return rewritten.subList(0, i + 1);
+            }
+        }
+        return rewritten;
+    }
+
+    private static boolean alwaysJumps(Stmt stmt) {
+        if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+            return true;
+        }
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block) stmt).statements;
+            return !statements.isEmpty() && alwaysJumps(statements.get(statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return ifStmt.elseBranch != null && alwaysJumps(ifStmt.thenBranch) && alwaysJumps(ifStmt.elseBranch);
+        }
+        return false;
+    }
+}
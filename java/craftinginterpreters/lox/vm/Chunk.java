@@ -0,0 +1,65 @@
+package craftinginterpreters.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//A function's compiled bytecode, the source line of every byte for
+//error reporting, and the constants it refers to by index
+public class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    private int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+    //Numbers and strings are shared, everything else gets its own entry
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+    Object[] constantTable;
+
+    public int size() {
+        return count;
+    }
+
+    public void write(int value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+
+        code[count] = (byte) value;
+        lines[count] = line;
+        count++;
+    }
+
+    public void writeShort(int value, int line) {
+        write((value >> 8) & 0xff, line);
+        write(value & 0xff, line);
+    }
+
+    //Overwrites a two byte operand that was written as a placeholder
+    public void patchShort(int offset, int value) {
+        code[offset] = (byte) ((value >> 8) & 0xff);
+        code[offset + 1] = (byte) (value & 0xff);
+    }
+
+    public int addConstant(Object value) {
+        boolean shareable = value instanceof String || value instanceof Double;
+        if (shareable) {
+            Integer index = constantIndices.get(value);
+            if (index != null) return index;
+        }
+
+        constants.add(value);
+        int index = constants.size() - 1;
+        if (shareable) constantIndices.put(value, index);
+        return index;
+    }
+
+    //Trims the buffers once the compiler is done writing
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constantTable = constants.toArray();
+    }
+}
@@ -0,0 +1,31 @@
+package craftinginterpreters.lox.vm;
+
+//The compiled, closure-independent part of a function
+public class FunctionProto {
+    public final String name;
+    public final int arity;
+    //Where it's declared, for the profiler
+    public final int line;
+    public final Chunk chunk = new Chunk();
+    int upvalueCount;
+    //Most stack slots the function needs at once, including its locals
+    int maxStack;
+
+    public FunctionProto(String name, int arity, int line) {
+        this.name = name;
+        this.arity = arity;
+        this.line = line;
+    }
+
+    public void finish(int upvalueCount, int maxStack) {
+        this.upvalueCount = upvalueCount;
+        this.maxStack = maxStack;
+        chunk.seal();
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,18 @@
+package craftinginterpreters.lox.vm;
+
+//A captured variable. While the variable's frame is live it points at the
+//stack slot, once the frame is gone the value moves into the upvalue itself
+class Upvalue {
+    int index;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int index, Upvalue next) {
+        this.index = index;
+        this.next = next;
+    }
+
+    boolean isOpen() {
+        return index >= 0;
+    }
+}
@@ -0,0 +1,633 @@
+package craftinginterpreters.lox.vm;
+
+import craftinginterpreters.lox.LoxArray;
+import craftinginterpreters.lox.Native;
+import craftinginterpreters.lox.NativeError;
+import craftinginterpreters.lox.Output;
+import craftinginterpreters.lox.OutputSink;
+import craftinginterpreters.lox.Profiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static craftinginterpreters.lox.vm.OpCode.*;
+
+//Stack based virtual machine for chunks produced by the BytecodeCompiler.
+//Values are the same Java objects the tree-walking Interpreter uses for
+//nil, booleans, numbers and strings, so both engines print identically.
+public class VM {
+    private static final int FRAMES_MAX = 1 << 16;
+    //Marks global slots that have been referenced but not yet defined
+    private static final Object UNDEFINED = new Object();
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    //Open upvalues, sorted by stack slot with the highest first
+    private Upvalue openUpvalues = null;
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globalValues = new Object[64];
+
+    private final OutputSink output;
+    private Profiler profiler = null;
+
+    public VM(OutputSink output) {
+        this.output = output;
+        for (Native function : Native.ALL) {
+            globalValues[globalSlot(function.name)] = function;
+        }
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    //Globals are resolved to a fixed slot at compile time. Slots survive
+    //between calls to interpret so REPL lines can share them.
+    public int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+
+        int index = globalSlots.size();
+        if (index == globalValues.length) {
+            globalNames = Arrays.copyOf(globalNames, index * 2);
+            globalValues = Arrays.copyOf(globalValues, index * 2);
+        }
+        globalNames[index] = name;
+        globalValues[index] = UNDEFINED;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    public void interpret(FunctionProto script) {
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+
+        try {
+            Closure closure = new Closure(script);
+            stack[sp++] = closure;
+            call(closure, 0, 0);
+            run();
+        }
+        catch (VmRuntimeError e) {
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+            if (profiler != null) profiler.reset();
+            throw e;
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        Closure closure = frame.closure;
+        byte[] code = closure.function.chunk.code;
+        Object[] constants = closure.function.chunk.constantTable;
+        int ip = frame.ip;
+        int base = frame.base;
+        Object[] stack = this.stack;
+        int sp = this.sp;
+
+        for (;;) {
+            int start = ip;
+            switch (code[ip++]) {
+                case CONSTANT: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[sp++] = constants[index];
+                    break;
+                }
+                case NIL: stack[sp++] = null; break;
+                case TRUE: stack[sp++] = true; break;
+                case FALSE: stack[sp++] = false; break;
+                case POP: sp--; break;
+
+                case GET_LOCAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[sp++] = stack[base + slot];
+                    break;
+                }
+                case SET_LOCAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[base + slot] = stack[sp - 1];
+                    break;
+                }
+                case GET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globalValues[slot];
+                    if (value == UNDEFINED) {
+                        throw error(closure, start, "Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case DEFINE_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globalValues[slot] = stack[--sp];
+                    break;
+                }
+                case SET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globalValues[slot] == UNDEFINED) {
+                        throw error(closure, start, "Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    globalValues[slot] = stack[sp - 1];
+                    break;
+                }
+                case GET_UPVALUE: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Upvalue upvalue = closure.upvalues[slot];
+                    stack[sp++] = upvalue.isOpen() ? stack[upvalue.index] : upvalue.closed;
+                    break;
+                }
+                case SET_UPVALUE: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Upvalue upvalue = closure.upvalues[slot];
+                    if (upvalue.isOpen()) {
+                        stack[upvalue.index] = stack[sp - 1];
+                    }
+                    else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case GET_PROPERTY: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!(stack[sp - 1] instanceof VmInstance)) {
+                        throw error(closure, start, "Only instances have properties.");
+                    }
+
+                    VmInstance instance = (VmInstance) stack[sp - 1];
+                    String name = (String) constants[index];
+                    if (instance.fields.containsKey(name)) {
+                        stack[sp - 1] = instance.fields.get(name);
+                        break;
+                    }
+
+                    Closure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        throw error(closure, start, "Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new BoundMethod(instance, method);
+                    break;
+                }
+                case CHECK_INSTANCE:
+                    if (!(stack[sp - 1] instanceof VmInstance)) {
+                        throw error(closure, start, "Only instances have fields.");
+                    }
+                    break;
+                case ARRAY: {
+                    int count = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    LoxArray array = new LoxArray(count);
+                    for (int i = sp - count; i < sp; i++) {
+                        array.add(stack[i]);
+                    }
+                    sp -= count;
+                    stack[sp++] = array;
+                    break;
+                }
+                case GET_INDEX: {
+                    LoxArray array = indexTarget(stack[sp - 2], closure, start);
+                    int index = checkIndex(array, stack[sp - 1], closure, start);
+                    sp--;
+                    stack[sp - 1] = array.get(index);
+                    break;
+                }
+                case SET_INDEX: {
+                    LoxArray array = indexTarget(stack[sp - 3], closure, start);
+                    int index = checkIndex(array, stack[sp - 2], closure, start);
+                    array.set(index, stack[sp - 1]);
+                    stack[sp - 3] = stack[sp - 1];
+                    sp -= 2;
+                    break;
+                }
+                case SET_PROPERTY: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    VmInstance instance = (VmInstance) stack[sp - 2];
+                    instance.fields.put((String) constants[index], stack[sp - 1]);
+                    stack[sp - 2] = stack[sp - 1];
+                    sp--;
+                    break;
+                }
+
+                case EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Objects.equals(stack[sp - 1], right);
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Objects.equals(stack[sp - 1], right);
+                    break;
+                }
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = compare(code[start], stack[sp - 1], right, closure, start);
+                    break;
+                }
+                case ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double) left + (double) right;
+                    }
+                    else if (left instanceof String && right instanceof String) {
+                        stack[sp - 1] = (String) left + (String) right;
+                    }
+                    //Number + String converts number to a string and concatenates
+                    else if ((left instanceof String && right instanceof Double) || (left instanceof Double && right instanceof String)) {
+                        stack[sp - 1] = stringify(left) + stringify(right);
+                    }
+                    else {
+                        throw error(closure, start, "Operands must both be numbers or strings.");
+                    }
+                    break;
+                }
+                case SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(left, right, closure, start);
+                    stack[sp - 1] = (double) left - (double) right;
+                    break;
+                }
+                case MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(left, right, closure, start);
+                    stack[sp - 1] = (double) left * (double) right;
+                    break;
+                }
+                case DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(left, right, closure, start);
+                    stack[sp - 1] = (double) left / (double) right;
+                    break;
+                }
+                case NOT:
+                    stack[sp - 1] = isFalsey(stack[sp - 1]);
+                    break;
+                case NEGATE:
+                    if (!(stack[sp - 1] instanceof Double)) {
+                        throw error(closure, start, "Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double) stack[sp - 1];
+                    break;
+
+                case PRINT:
+                    print(stack[--sp]);
+                    break;
+                case JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (isFalsey(stack[sp - 1])) ip += offset;
+                    break;
+                }
+                case LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    break;
+                }
+
+                case CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    callValue(stack[sp - 1 - argCount], argCount, closure, start);
+
+                    frame = frames[frameCount - 1];
+                    closure = frame.closure;
+                    code = closure.function.chunk.code;
+                    constants = closure.function.chunk.constantTable;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                //Like the trampoline of the other engines, a call to a Lox
+                //function in tail position takes over the caller's frame, so
+                //tail recursion runs in a fixed number of frames. Other
+                //callees complete at once and the RETURN after this returns
+                //their result.
+                case TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    Object callee = stack[sp - 1 - argCount];
+                    if (callee instanceof Closure || callee instanceof BoundMethod) {
+                        tailCall(frame, callee, argCount, closure, start);
+                    }
+                    else {
+                        callValue(callee, argCount, closure, start);
+                    }
+
+                    closure = frame.closure;
+                    code = closure.function.chunk.code;
+                    constants = closure.function.chunk.constantTable;
+                    ip = frame.ip;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case CLOSURE: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Closure function = new Closure((FunctionProto) constants[index]);
+                    for (int i = 0; i < function.upvalues.length; i++) {
+                        boolean isLocal = code[ip] == 1;
+                        int slot = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                        ip += 3;
+                        function.upvalues[i] = isLocal ? captureUpvalue(base + slot) : closure.upvalues[slot];
+                    }
+                    stack[sp++] = function;
+                    break;
+                }
+                case CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(base);
+                    Arrays.fill(stack, base, sp, null);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        this.sp = 0;
+                        return;
+                    }
+                    if (profiler != null) profiler.exit();
+
+                    sp = base;
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    closure = frame.closure;
+                    code = closure.function.chunk.code;
+                    constants = closure.function.chunk.constantTable;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case CLASS: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[sp++] = new VmClass((String) constants[index]);
+                    break;
+                }
+                case METHOD: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    VmClass klass = (VmClass) stack[sp - 2];
+                    klass.methods.put((String) constants[index], (Closure) stack[sp - 1]);
+                    sp--;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[start] + ".");
+            }
+        }
+    }
+
+    //Reads the callee and its arguments from the top of the stack. Calls to
+    //Lox functions push a new frame, everything else completes immediately.
+    private void callValue(Object callee, int argCount, Closure caller, int callSite) {
+        if (callee instanceof Closure) {
+            call((Closure) callee, argCount, caller.function.chunk.lines[callSite]);
+            return;
+        }
+        if (callee instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod) callee;
+            stack[sp - 1 - argCount] = bound.receiver;
+            call(bound.method, argCount, caller.function.chunk.lines[callSite]);
+            return;
+        }
+        if (callee instanceof VmClass) {
+            checkArity(0, argCount, caller, callSite);
+            Arrays.fill(stack, sp - argCount, sp, null);
+            sp -= argCount;
+            stack[sp - 1] = new VmInstance((VmClass) callee);
+            return;
+        }
+        if (callee instanceof Native) {
+            Native function = (Native) callee;
+            checkArity(function.arity, argCount, caller, callSite);
+            Object[] arguments = Arrays.copyOfRange(stack, sp - argCount, sp);
+            Object result;
+            try {
+                result = function.call(arguments);
+            }
+            catch (NativeError e) {
+                throw error(caller, callSite, e.getMessage());
+            }
+            Arrays.fill(stack, sp - argCount, sp, null);
+            sp -= argCount;
+            stack[sp - 1] = result;
+            return;
+        }
+
+        throw error(caller, callSite, "Can only call functions and classes.");
+    }
+
+    private void call(Closure closure, int argCount, int line) {
+        FunctionProto function = closure.function;
+        if (argCount != function.arity) {
+            throw new VmRuntimeError(line,
+                    "Expected " + function.arity + " arguments but got " + argCount + ".");
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw new VmRuntimeError(line, "Stack overflow.");
+        }
+
+        int base = sp - argCount - 1;
+        if (base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        if (frames[frameCount] == null) {
+            frames[frameCount] = new CallFrame();
+        }
+
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        //The script itself is the root of every profiled stack
+        if (profiler != null && frameCount > 1) profiler.enter(function);
+    }
+
+    //Moves the callee and its arguments down over the frame's own slots
+    //and restarts the frame in the callee
+    private void tailCall(CallFrame frame, Object callee, int argCount, Closure caller, int callSite) {
+        Closure closure;
+        if (callee instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod) callee;
+            stack[sp - 1 - argCount] = bound.receiver;
+            closure = bound.method;
+        }
+        else {
+            closure = (Closure) callee;
+        }
+
+        FunctionProto function = closure.function;
+        checkArity(function.arity, argCount, caller, callSite);
+
+        int base = frame.base;
+        closeUpvalues(base);
+        int from = sp - argCount - 1;
+        for (int i = 0; i <= argCount; i++) {
+            stack[base + i] = stack[from + i];
+        }
+        for (int i = base + argCount + 1; i < sp; i++) {
+            stack[i] = null;
+        }
+        sp = base + argCount + 1;
+        if (base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+        }
+
+        frame.closure = closure;
+        frame.ip = 0;
+        if (profiler != null) profiler.replace(function);
+    }
+
+    private Upvalue captureUpvalue(int index) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.index > index) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.index == index) return upvalue;
+
+        Upvalue created = new Upvalue(index, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        }
+        else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    //Moves every captured variable at or above the given slot off the stack
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.index >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.index];
+            upvalue.index = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private Boolean compare(byte op, Object left, Object right, Closure closure, int start) {
+        int comparison;
+        if (left instanceof Double && right instanceof Double) {
+            double a = (double) left;
+            double b = (double) right;
+            switch (op) {
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                default: return a <= b;
+            }
+        }
+        else if (left instanceof String && right instanceof String) {
+            comparison = ((String) left).compareTo((String) right);
+        }
+        else {
+            throw error(closure, start, "Operands must both be numbers or strings.");
+        }
+
+        switch (op) {
+            case GREATER: return comparison > 0;
+            case GREATER_EQUAL: return comparison >= 0;
+            case LESS: return comparison < 0;
+            default: return comparison <= 0;
+        }
+    }
+
+    private void checkNumberOperands(Object left, Object right, Closure closure, int start) {
+        if (!(left instanceof Double) || !(right instanceof Double)) {
+            throw error(closure, start, "Operand must be a number.");
+        }
+    }
+
+    private void checkArity(int arity, int argCount, Closure caller, int callSite) {
+        if (argCount != arity) {
+            throw error(caller, callSite, "Expected " + arity + " arguments but got " + argCount + ".");
+        }
+    }
+
+    private LoxArray indexTarget(Object object, Closure closure, int offset) {
+        if (!(object instanceof LoxArray)) {
+            throw error(closure, offset, "Only arrays can be indexed.");
+        }
+        return (LoxArray) object;
+    }
+
+    private int checkIndex(LoxArray array, Object index, Closure closure, int offset) {
+        String error = array.indexError(index);
+        if (error != null) throw error(closure, offset, error);
+        return (int) (double) index;
+    }
+
+    private VmRuntimeError error(Closure closure, int offset, String message) {
+        return new VmRuntimeError(closure.function.chunk.lines[offset], message);
+    }
+
+    //Null and false booleans are falsy, all other values are truthy
+    private static boolean isFalsey(Object o) {
+        return o == null || (o instanceof Boolean && !(boolean) o);
+    }
+
+    private static String stringify(Object o) {
+        if (o == null) return "nil";
+
+        if (o instanceof Double) return Output.format((double) o);
+
+        return o.toString();
+    }
+
+    private void print(Object value) {
+        if (value instanceof Double) {
+            output.println((double) value);
+        }
+        else {
+            output.println(stringify(value));
+        }
+    }
+}
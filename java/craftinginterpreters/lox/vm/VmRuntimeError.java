@@ -0,0 +1,10 @@
+package craftinginterpreters.lox.vm;
+
+public class VmRuntimeError extends RuntimeException {
+    public final int line;
+
+    VmRuntimeError(int line, String message) {
+        super(message);
+        this.line = line;
+    }
+}
@@ -13,37 +13,43 @@ public class GenerateAst {
         }
 
         String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign     : Token name, Expr value",
-                "Binary     : Expr left, Token operator, Expr right",
-                "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Get        : Expr object, Token name",
+        defineAst(outputDir, "Expr", Arrays.asList(), Arrays.asList(
+                "Array      : Token bracket, List<Expr> elements",
+                "Assign     : Token name, Expr value | int depth = -1, int slot, boolean inCell",
+                "Binary     : Expr left, Token operator, Expr right | Operators.BinaryOperation operation = Operators.UNINITIALIZED_BINARY",
+                "Call       : Expr callee, Token paren, List<Expr> arguments | InlineCache.Call cache = new InlineCache.Call()",
+                "Get        : Expr object, Token name | InlineCache.Property cache = new InlineCache.Property()",
                 "Grouping   : Expr expression",
+                "Index      : Expr object, Token bracket, Expr index",
                 "Literal    : Object value",
-                "Logical    : Expr left, Token operator, Expr right",
-                "Set        : Expr object, Token name, Expr value",
-                "This       : Token keyword",
-                "Unary      : Token operator, Expr right",
+                "Logical    : Expr left, Token operator, Expr right | Operators.LogicalOperation operation = Operators.UNINITIALIZED_LOGICAL",
+                "Set        : Expr object, Token name, Expr value | InlineCache.Store cache = new InlineCache.Store()",
+                "SetIndex   : Expr object, Token bracket, Expr index, Expr value",
+                "This       : Token keyword | int depth = -1, int slot, boolean inCell",
+                "Unary      : Token operator, Expr right | Operators.UnaryOperation operation = Operators.UNINITIALIZED_UNARY",
                 "Ternary    : Expr condition, Expr trueExpr, Expr falseExpr",
-                "Variable   : Token name"
+                "Variable   : Token name | int depth = -1, int slot, boolean inCell"
         ));
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
+        defineAst(outputDir, "Stmt", Arrays.asList("int line"), Arrays.asList(
                 "Break      : ",
                 "Continue   : ",
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, List<Stmt.Function> methods",
+                "Block      : List<Stmt> statements | boolean hasEnvironment",
+                "Class      : Token name, List<Stmt.Function> methods | boolean isCaptured, int slot",
+                "Counted    : Stmt statement | long count, LineCounter.Timer timer",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body | int calls, int deoptimizations, CompiledFunction compiled, boolean isCaptured, int slot, int[] capturedSlots = new int[0], int[] upvalueDepths = new int[0], int[] upvalueSlots = new int[0], Memoizer.Cache memo",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
+                "Return     : Token keyword, Expr value | boolean isTailCall",
+                "Var        : Token name, Expr initializer | boolean isCaptured, int slot",
                 "While      : Expr condition, Stmt body, Expr increment"
         ));
     }
 
-    private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+    //The base fields are mutable fields every node has
+    private static void defineAst(String outputDir, String baseName, List<String> baseFields, List<String> types)
+            throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -56,6 +62,11 @@ public class GenerateAst {
         defineVisitor(writer, baseName, types);
         writer.println();
 
+        for (String field : baseFields) {
+            writer.println("\t" + field + ";");
+        }
+        if (!baseFields.isEmpty()) writer.println();
+
         writer.println("\tabstract <R> R accept(Visitor<R> visitor);");
         writer.println();
 
@@ -71,6 +82,13 @@ public class GenerateAst {
     private static void defineType(PrintWriter writer, String baseName, String className, String fields) {
         writer.println("\tstatic class " + className + " extends " + baseName + " {");
 
+        //Anything after '|' is left mutable for later passes to fill in
+        String[] mutableList = new String[0];
+        if (fields.contains("|")) {
+            mutableList = fields.split("\\|")[1].trim().split(", ");
+            fields = fields.split("\\|")[0].trim();
+        }
+
         //Fields
         String[] fieldList;
         if (fields.isEmpty()) {
@@ -82,6 +100,9 @@ public class GenerateAst {
         for (String field : fieldList) {
             writer.println("\t\tfinal " + field + ";");
         }
+        for (String field : mutableList) {
+            writer.println("\t\t" + field + ";");
+        }
         writer.println();
 
         //Constructor
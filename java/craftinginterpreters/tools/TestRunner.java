@@ -0,0 +1,146 @@
+package craftinginterpreters.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+//Runs every Lox script under a directory and checks what it prints
+//against the expectations in its comments:
+//
+//  print 1 + 2; // expect: 3
+//  nil(); // expect runtime error: Can only call functions and classes.
+//  print 1 *; // Error at ';': Expect expression.
+//  // [line 3] Error at end: Expect ';' after value.
+//
+//An expected runtime error is reported on the line of its comment, as
+//are compile errors not given a line of their own. The flags after the
+//directory are passed to jlox, so running the tests once per engine
+//checks that all of them agree:
+//
+//  java -cp <classes> craftinginterpreters.tools.TestRunner test
+//  java -cp <classes> craftinginterpreters.tools.TestRunner test --vm
+public class TestRunner {
+    private static final Pattern EXPECTED_OUTPUT = Pattern.compile("// expect: ?(.*)");
+    private static final Pattern EXPECTED_RUNTIME_ERROR = Pattern.compile("// expect runtime error: (.+)");
+    private static final Pattern EXPECTED_ERROR = Pattern.compile("// (\\[line (\\d+)\\] )?(Error.*)");
+
+    private static final int EXIT_COMPILE_ERROR = 65;
+    private static final int EXIT_RUNTIME_ERROR = 70;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: test_runner <test directory> [jlox flags]");
+            System.exit(64);
+        }
+
+        List<String> flags = Arrays.asList(args).subList(1, args.length);
+        List<Path> scripts;
+        try (Stream<Path> paths = Files.walk(Paths.get(args[0]))) {
+            scripts = paths.filter(path -> path.toString().endsWith(".lox")).sorted().collect(Collectors.toList());
+        }
+
+        int failed = 0;
+        for (Path script : scripts) {
+            List<String> failures = run(script, flags);
+            if (failures.isEmpty()) continue;
+
+            failed++;
+            System.out.println("FAIL " + script);
+            for (String failure : failures) {
+                System.out.println("     " + failure);
+            }
+        }
+
+        System.out.println((scripts.size() - failed) + " passed, " + failed + " failed"
+                + (flags.isEmpty() ? "" : " (" + String.join(" ", flags) + ")"));
+        if (failed > 0) System.exit(1);
+    }
+
+    //Returns what went wrong, if anything
+    private static List<String> run(Path script, List<String> flags) throws IOException, InterruptedException {
+        List<String> expectedOutput = new ArrayList<>();
+        List<String> expectedErrors = new ArrayList<>();
+        int expectedStatus = 0;
+
+        List<String> lines = Files.readAllLines(script, Charset.defaultCharset());
+        for (int i = 0; i < lines.size(); i++) {
+            int line = i + 1;
+            Matcher match = EXPECTED_OUTPUT.matcher(lines.get(i));
+            if (match.find()) {
+                expectedOutput.add(match.group(1));
+                continue;
+            }
+
+            match = EXPECTED_RUNTIME_ERROR.matcher(lines.get(i));
+            if (match.find()) {
+                expectedErrors.add(match.group(1));
+                expectedErrors.add("[line " + line + "]");
+                expectedStatus = EXIT_RUNTIME_ERROR;
+                continue;
+            }
+
+            match = EXPECTED_ERROR.matcher(lines.get(i));
+            if (match.find()) {
+                String errorLine = match.group(2) != null ? match.group(2) : String.valueOf(line);
+                expectedErrors.add("[line " + errorLine + "] " + match.group(3));
+                expectedStatus = EXIT_COMPILE_ERROR;
+            }
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("craftinginterpreters.lox.Lox");
+        command.addAll(flags);
+        command.add(script.toString());
+
+        File out = File.createTempFile("lox", ".out");
+        File err = File.createTempFile("lox", ".err");
+        try {
+            Process process = new ProcessBuilder(command).redirectOutput(out).redirectError(err).start();
+            int status = process.waitFor();
+            List<String> output = Files.readAllLines(out.toPath(), Charset.defaultCharset());
+            List<String> errors = Files.readAllLines(err.toPath(), Charset.defaultCharset());
+
+            List<String> failures = new ArrayList<>();
+            compare("output", expectedOutput, output, failures);
+            compare("error", expectedErrors, errors, failures);
+            if (status != expectedStatus) {
+                failures.add("Expected exit status " + expectedStatus + " but got " + status + ".");
+            }
+            return failures;
+        }
+        finally {
+            out.delete();
+            err.delete();
+        }
+    }
+
+    private static void compare(String stream, List<String> expected, List<String> actual, List<String> failures) {
+        for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+            if (i >= actual.size()) {
+                failures.add("Missing " + stream + " '" + expected.get(i) + "'.");
+                return;
+            }
+            if (i >= expected.size()) {
+                failures.add("Unexpected " + stream + " '" + actual.get(i) + "'.");
+                return;
+            }
+            if (!expected.get(i).equals(actual.get(i))) {
+                failures.add("Expected " + stream + " '" + expected.get(i) + "' but got '" + actual.get(i) + "'.");
+                return;
+            }
+        }
+    }
+}